@@ -0,0 +1,94 @@
+package de.janbo.agendawatchface.sync;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import de.janbo.agendawatchface.api.AgendaItem;
+
+/**
+ * SyncHost for running a SyncEngine without Android (e.g., against a SimulatedWatch). Settings are kept in a map (missing ones have their default values), the
+ * items to send are set directly
+ */
+public class SimulatedHost implements SyncHost {
+	private List<AgendaItem> items = new ArrayList<AgendaItem>(); // items the watch should show
+	private HashMap<String, String> settings = new HashMap<String, String>(); // key -> value (booleans as "true"/"false")
+	private boolean logging = false; // print log messages to System.out
+
+	private int syncsCompleted = 0;
+	private int syncsFailed = 0;
+	private int watchappOutdatedNotifications = 0;
+	private int androidAppOutdatedNotifications = 0;
+
+	/**
+	 * Sets the items the watch should show (already sorted and trimmed, as the service would give them)
+	 */
+	public void setItems(List<AgendaItem> items) {
+		this.items = items;
+	}
+
+	/**
+	 * Sets a setting (like the SharedPreferences key). Call SyncEngine.settingsChanged() afterwards
+	 */
+	public void setSetting(String key, String value) {
+		settings.put(key, value);
+	}
+
+	public void setLogging(boolean logging) {
+		this.logging = logging;
+	}
+
+	public List<AgendaItem> getItemsToSend(long now) {
+		return new ArrayList<AgendaItem>(items);
+	}
+
+	public String getStringSetting(String key, String defaultValue) {
+		String value = settings.get(key);
+		return value == null ? defaultValue : value;
+	}
+
+	public boolean getBooleanSetting(String key, boolean defaultValue) {
+		String value = settings.get(key);
+		return value == null ? defaultValue : Boolean.parseBoolean(value);
+	}
+
+	public void log(String tag, String message) {
+		if (logging)
+			System.out.println(tag + ": " + message);
+	}
+
+	public void onSyncCompleted() {
+		syncsCompleted++;
+	}
+
+	public void onSyncFailed() {
+		syncsFailed++;
+	}
+
+	public void onWatchInfoChanged() {
+	}
+
+	public void onWatchappOutdated(boolean mandatoryUpgrade) {
+		watchappOutdatedNotifications++;
+	}
+
+	public void onAndroidAppOutdated() {
+		androidAppOutdatedNotifications++;
+	}
+
+	public int getSyncsCompleted() {
+		return syncsCompleted;
+	}
+
+	public int getSyncsFailed() {
+		return syncsFailed;
+	}
+
+	public int getWatchappOutdatedNotifications() {
+		return watchappOutdatedNotifications;
+	}
+
+	public int getAndroidAppOutdatedNotifications() {
+		return androidAppOutdatedNotifications;
+	}
+}
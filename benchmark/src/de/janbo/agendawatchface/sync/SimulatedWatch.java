@@ -0,0 +1,411 @@
+package de.janbo.agendawatchface.sync;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+/**
+ * In-memory model of the watchapp's side of the protocol. Applies the messages of a SyncEngine to its item list, acks or nacks them after a configurable latency
+ * (messages larger than the inbox are nacked, others with a configurable probability), can lose messages or their acks and reports its sync id in requests,
+ * like the real watchapp.
+ * Counts messages, bytes and completed syncs so that syncs can be measured on a plain JVM (driven by a VirtualScheduler)
+ */
+public class SimulatedWatch implements WatchTransport {
+	/**
+	 * An item as the watch stores it
+	 */
+	public static class Item {
+		public String text1;
+		public String text2;
+		public int design1;
+		public int design2;
+		public int startTime;
+		public int endTime;
+		public int text1Ref = -1; // string table slot to resolve text1 from at the end of the sync, -1 if none
+		public int text2Ref = -1;
+	}
+
+	private SyncScheduler scheduler;
+	private SyncEngine engine = null;
+	private int version; // watchapp version to report
+	private int inboxSize; // messages larger than this (in bytes) are nacked
+	private long latency; // one way latency of a message (in ms)
+	private double nackProbability = 0; // probability of nacking a message that fits into the inbox
+	private double lossProbability = 0; // probability of a message or its ack getting lost
+	private Random random = new Random(0);
+
+	private List<Item> items = new ArrayList<Item>(); // the data the watch shows
+	private long syncId = 0; // id of the data in items, 0 while a sync is in progress
+	private long pendingSyncId = 0; // id of the data after the current sync
+	private int pendingNumItems = -1; // number of items after the current sync, -1 if there is none
+	private long settingsFlags = 0; // last PEBBLE_KEY_SETTINGS_BOOLFLAGS received
+	private String[] stringTable = new String[StringTable.CAPACITY]; // texts set by STRINGS messages
+
+	// Statistics
+	private int messagesReceived = 0;
+	private long bytesReceived = 0;
+	private int nacksSent = 0;
+	private int messagesLost = 0; // messages or acks lost
+	private int syncsCompleted = 0;
+	private int brokenSyncs = 0; // DONE messages that left the watch with incomplete data
+	private int noNewDataReceived = 0;
+	private int vibrations = 0;
+
+	/**
+	 * @param scheduler
+	 *            scheduler the engine runs on
+	 * @param version
+	 *            watchapp version to report
+	 * @param inboxSize
+	 *            size of the AppMessage inbox in bytes (reported to watchapps that support packed items)
+	 * @param latency
+	 *            one way latency of a message in ms
+	 */
+	public SimulatedWatch(SyncScheduler scheduler, int version, int inboxSize, long latency) {
+		this.scheduler = scheduler;
+		this.version = version;
+		this.inboxSize = inboxSize;
+		this.latency = latency;
+	}
+
+	/**
+	 * Sets the engine that gets this watch's acks, nacks and requests. The engine must use this watch as its transport
+	 */
+	public void connect(SyncEngine engine) {
+		this.engine = engine;
+	}
+
+	/**
+	 * Makes the watch nack messages randomly
+	 *
+	 * @param probability
+	 *            probability of nacking a message
+	 * @param seed
+	 *            seed for the random numbers (for reproducible runs)
+	 */
+	public void setNackProbability(double probability, long seed) {
+		this.nackProbability = probability;
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * Makes the watch lose messages (or its answer to them) randomly. The engine then gets neither ack nor nack
+	 *
+	 * @param probability
+	 *            probability of losing a message. Half of the losses are of the ack/nack (after the message has been applied)
+	 */
+	public void setLossProbability(double probability) {
+		this.lossProbability = probability;
+	}
+
+	/**
+	 * Sends a request for data to the engine (like the watchapp does when it starts)
+	 */
+	public void sendRequest() {
+		final PebbleDictionary data = new PebbleDictionary();
+		data.addInt8(SyncEngine.PEBBLE_TO_PHONE_KEY_VERSION, (byte) version);
+		data.addInt8(SyncEngine.PEBBLE_TO_PHONE_KEY_VERSIONBACKWARD, (byte) Math.min(version, SyncEngine.CURRENT_WATCHAPP_VERSION_BUNDLED)); // pretend to be bundled with this app
+		if (version >= SyncEngine.WATCHAPP_VERSION_HASHED_SYNC_ID)
+			data.addUint32(SyncEngine.PEBBLE_TO_PHONE_KEY_LAST_SYNC_ID, (int) syncId);
+		else
+			data.addUint8(SyncEngine.PEBBLE_TO_PHONE_KEY_LAST_SYNC_ID, (byte) syncId);
+		if (version >= SyncEngine.WATCHAPP_VERSION_PACKED_ITEMS)
+			data.addUint32(SyncEngine.PEBBLE_TO_PHONE_KEY_INBOX_SIZE, inboxSize);
+		scheduler.postDelayed(new Runnable() {
+			public void run() {
+				engine.handleWatchMessage(data);
+			}
+		}, latency);
+	}
+
+	public void sendMessage(final PebbleDictionary data, final int transactionId) {
+		scheduler.postDelayed(new Runnable() {
+			public void run() {
+				receive(data, transactionId);
+			}
+		}, latency);
+	}
+
+	/**
+	 * Handles a message arriving at the watch
+	 */
+	private void receive(PebbleDictionary data, final int transactionId) {
+		if (lossProbability > 0 && random.nextDouble() < lossProbability / 2) { // message lost on its way to the watch
+			messagesLost++;
+			return;
+		}
+
+		int size = SyncEngine.getSerializedSize(data);
+		messagesReceived++;
+		bytesReceived += size;
+
+		final boolean ack = size <= inboxSize && (nackProbability <= 0 || random.nextDouble() >= nackProbability);
+		if (ack)
+			apply(data);
+		else
+			nacksSent++;
+
+		if (lossProbability > 0 && random.nextDouble() < lossProbability / 2) { // answer lost on its way to the phone
+			messagesLost++;
+			return;
+		}
+
+		scheduler.postDelayed(new Runnable() {
+			public void run() {
+				if (ack)
+					engine.ackReceived(transactionId);
+				else
+					engine.nackReceived(transactionId);
+			}
+		}, latency);
+	}
+
+	/**
+	 * Applies an acked message to the watch's data
+	 */
+	private void apply(PebbleDictionary data) {
+		int command = (int) getUint(data, SyncEngine.PEBBLE_KEY_COMMAND, 0xFF);
+		switch (command) {
+		case SyncEngine.PEBBLE_COMMAND_FORCE_REQUEST:
+			sendRequest();
+			break;
+		case SyncEngine.PEBBLE_COMMAND_NO_NEW_DATA:
+			noNewDataReceived++;
+			break;
+		case SyncEngine.PEBBLE_COMMAND_INIT_DATA:
+			items.clear();
+			Arrays.fill(stringTable, null);
+			beginSync(data);
+			if (pendingNumItems == 0) { // no DONE message follows
+				syncId = pendingSyncId;
+				syncsCompleted++;
+				pendingNumItems = -1;
+			}
+			break;
+		case SyncEngine.PEBBLE_COMMAND_DELTA_BEGIN:
+			if (syncId == 0 || getUint(data, SyncEngine.PEBBLE_KEY_DELTA_BASE_SYNC_ID, 0xFFFFFFFFL) != syncId) { // delta doesn't apply to our data. Start over
+				items.clear();
+				syncId = 0;
+				pendingNumItems = -1;
+				sendRequest();
+				break;
+			}
+			beginSync(data);
+			break;
+		case SyncEngine.PEBBLE_COMMAND_SETTINGS:
+			if (syncId == 0 || getUint(data, SyncEngine.PEBBLE_KEY_DELTA_BASE_SYNC_ID, 0xFFFFFFFFL) != syncId) { // doesn't apply to our data. Start over
+				items.clear();
+				syncId = 0;
+				pendingNumItems = -1;
+				sendRequest();
+				break;
+			}
+			settingsFlags = getUint(data, SyncEngine.PEBBLE_KEY_SETTINGS_BOOLFLAGS, 0xFFFFFFFFL);
+			syncId = getUint(data, SyncEngine.PEBBLE_KEY_SYNC_ID, 0xFFFFFFFFL);
+			pendingNumItems = -1; // a sync in progress is abandoned
+			syncsCompleted++;
+			break;
+		case SyncEngine.PEBBLE_COMMAND_ITEM:
+			Item item = getItem((int) getUint(data, SyncEngine.PEBBLE_KEY_ITEM_INDEX, 0xFF));
+			item.text1 = data.getString(SyncEngine.PEBBLE_KEY_ITEM_TEXT1);
+			item.text2 = data.getString(SyncEngine.PEBBLE_KEY_ITEM_TEXT2);
+			item.text1Ref = -1;
+			item.text2Ref = -1;
+			item.design1 = (int) getUint(data, SyncEngine.PEBBLE_KEY_ITEM_DESIGN1, 0xFF);
+			item.design2 = (int) getUint(data, SyncEngine.PEBBLE_KEY_ITEM_DESIGN2, 0xFF);
+			item.startTime = data.getInteger(SyncEngine.PEBBLE_KEY_ITEM_START_TIME).intValue();
+			item.endTime = data.getInteger(SyncEngine.PEBBLE_KEY_ITEM_END_TIME).intValue();
+			break;
+		case SyncEngine.PEBBLE_COMMAND_ITEM_1:
+			item = getItem((int) getUint(data, SyncEngine.PEBBLE_KEY_ITEM_INDEX, 0xFF));
+			item.text1 = data.getString(SyncEngine.PEBBLE_KEY_ITEM_TEXT1);
+			item.text1Ref = -1;
+			item.design1 = (int) getUint(data, SyncEngine.PEBBLE_KEY_ITEM_DESIGN1, 0xFF);
+			item.startTime = data.getInteger(SyncEngine.PEBBLE_KEY_ITEM_START_TIME).intValue();
+			break;
+		case SyncEngine.PEBBLE_COMMAND_ITEM_2:
+			item = getItem((int) getUint(data, SyncEngine.PEBBLE_KEY_ITEM_INDEX, 0xFF));
+			item.text2 = data.getString(SyncEngine.PEBBLE_KEY_ITEM_TEXT2);
+			item.text2Ref = -1;
+			item.design2 = (int) getUint(data, SyncEngine.PEBBLE_KEY_ITEM_DESIGN2, 0xFF);
+			item.endTime = data.getInteger(SyncEngine.PEBBLE_KEY_ITEM_END_TIME).intValue();
+			break;
+		case SyncEngine.PEBBLE_COMMAND_ITEMS_PACKED:
+			int numSlots = (int) getUint(data, SyncEngine.PEBBLE_KEY_NUM_ITEMS, 0xFF);
+			for (int slot = 0; slot < numSlots; slot++) {
+				int base = SyncEngine.PEBBLE_KEY_PACKED_ITEMS_BASE + slot * SyncEngine.PEBBLE_KEY_PACKED_ITEMS_STRIDE;
+				item = getItem((int) getUint(data, base + SyncEngine.PEBBLE_PACKED_OFFSET_INDEX, 0xFF));
+				item.text1 = data.getString(base + SyncEngine.PEBBLE_PACKED_OFFSET_TEXT1);
+				item.text2 = data.getString(base + SyncEngine.PEBBLE_PACKED_OFFSET_TEXT2);
+				item.text1Ref = data.contains(base + SyncEngine.PEBBLE_PACKED_OFFSET_TEXT1_REF) ? (int) getUint(data, base + SyncEngine.PEBBLE_PACKED_OFFSET_TEXT1_REF, 0xFF) : -1;
+				item.text2Ref = data.contains(base + SyncEngine.PEBBLE_PACKED_OFFSET_TEXT2_REF) ? (int) getUint(data, base + SyncEngine.PEBBLE_PACKED_OFFSET_TEXT2_REF, 0xFF) : -1;
+				item.design1 = (int) getUint(data, base + SyncEngine.PEBBLE_PACKED_OFFSET_DESIGN1, 0xFF);
+				item.design2 = (int) getUint(data, base + SyncEngine.PEBBLE_PACKED_OFFSET_DESIGN2, 0xFF);
+				item.startTime = data.getInteger(base + SyncEngine.PEBBLE_PACKED_OFFSET_START_TIME).intValue();
+				item.endTime = data.getInteger(base + SyncEngine.PEBBLE_PACKED_OFFSET_END_TIME).intValue();
+			}
+			break;
+		case SyncEngine.PEBBLE_COMMAND_STRINGS:
+			for (int slot = 0; slot < StringTable.CAPACITY; slot++) {
+				String text = data.getString(SyncEngine.PEBBLE_KEY_STRINGS_BASE + slot);
+				if (text != null)
+					stringTable[slot] = text;
+			}
+			break;
+		case SyncEngine.PEBBLE_COMMAND_DELTA_REMOVE:
+			int index = (int) getUint(data, SyncEngine.PEBBLE_KEY_ITEM_INDEX, 0xFF);
+			if (index < items.size())
+				items.remove(index);
+			break;
+		case SyncEngine.PEBBLE_COMMAND_DELTA_INSERT:
+			index = (int) getUint(data, SyncEngine.PEBBLE_KEY_ITEM_INDEX, 0xFF);
+			items.add(Math.min(index, items.size()), null);
+			break;
+		case SyncEngine.PEBBLE_COMMAND_DELTA_MOVE:
+			index = (int) getUint(data, SyncEngine.PEBBLE_KEY_ITEM_INDEX, 0xFF);
+			int fromIndex = (int) getUint(data, SyncEngine.PEBBLE_KEY_ITEM_FROM_INDEX, 0xFF);
+			if (fromIndex < items.size())
+				items.add(Math.min(index, items.size() - 1), items.remove(fromIndex));
+			break;
+		case SyncEngine.PEBBLE_COMMAND_DONE:
+			if (pendingNumItems == -1)
+				break;
+			boolean complete = items.size() >= pendingNumItems;
+			while (items.size() > pendingNumItems)
+				items.remove(items.size() - 1);
+			for (Item e : items) {
+				complete &= e != null;
+				if (e != null)
+					complete &= resolve(e);
+			}
+			if (complete) {
+				syncId = pendingSyncId;
+				syncsCompleted++;
+			} else
+				brokenSyncs++;
+			pendingNumItems = -1;
+			if (getUint(data, SyncEngine.PEBBLE_KEY_VIBRATE, 0xFF) != SyncEngine.PEBBLE_VIBRATE_NONE)
+				vibrations++;
+			break;
+		}
+	}
+
+	/**
+	 * Starts a sync announced by an INIT_DATA or DELTA_BEGIN message
+	 */
+	private void beginSync(PebbleDictionary data) {
+		syncId = 0; // data is in flux
+		pendingSyncId = getUint(data, SyncEngine.PEBBLE_KEY_SYNC_ID, version >= SyncEngine.WATCHAPP_VERSION_HASHED_SYNC_ID ? 0xFFFFFFFFL : 0xFF);
+		pendingNumItems = (int) getUint(data, SyncEngine.PEBBLE_KEY_NUM_ITEMS, 0xFF);
+		settingsFlags = getUint(data, SyncEngine.PEBBLE_KEY_SETTINGS_BOOLFLAGS, 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Replaces the item's text references by the texts in the string table
+	 *
+	 * @return false iff a reference points to an empty slot
+	 */
+	private boolean resolve(Item item) {
+		boolean resolved = true;
+		if (item.text1Ref >= 0) {
+			item.text1 = stringTable[item.text1Ref];
+			resolved &= item.text1 != null;
+			item.text1Ref = -1;
+		}
+		if (item.text2Ref >= 0) {
+			item.text2 = stringTable[item.text2Ref];
+			resolved &= item.text2 != null;
+			item.text2Ref = -1;
+		}
+		return resolved;
+	}
+
+	/**
+	 * Gives the item at index, creating it (and the ones before) if necessary
+	 */
+	private Item getItem(int index) {
+		while (items.size() <= index)
+			items.add(null);
+		if (items.get(index) == null)
+			items.set(index, new Item());
+		return items.get(index);
+	}
+
+	/**
+	 * Reads an unsigned integer (PebbleKit gives uint values as signed numbers of the tuple's width)
+	 */
+	private static long getUint(PebbleDictionary data, int key, long mask) {
+		Long value = data.getUnsignedInteger(key);
+		return value == null ? 0 : value & mask;
+	}
+
+	/**
+	 * Gives the items the watch has
+	 */
+	public List<Item> getItems() {
+		return items;
+	}
+
+	/**
+	 * Gives the id of the data the watch has (0 if none or while syncing)
+	 */
+	public long getSyncId() {
+		return syncId;
+	}
+
+	/**
+	 * Gives the last settings flags received
+	 */
+	public long getSettingsFlags() {
+		return settingsFlags;
+	}
+
+	public int getMessagesReceived() {
+		return messagesReceived;
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	public int getNacksSent() {
+		return nacksSent;
+	}
+
+	public int getMessagesLost() {
+		return messagesLost;
+	}
+
+	public int getSyncsCompleted() {
+		return syncsCompleted;
+	}
+
+	public int getBrokenSyncs() {
+		return brokenSyncs;
+	}
+
+	public int getNoNewDataReceived() {
+		return noNewDataReceived;
+	}
+
+	public int getVibrations() {
+		return vibrations;
+	}
+
+	/**
+	 * Sets all statistics to zero
+	 */
+	public void resetStatistics() {
+		messagesReceived = 0;
+		bytesReceived = 0;
+		nacksSent = 0;
+		messagesLost = 0;
+		syncsCompleted = 0;
+		brokenSyncs = 0;
+		noNewDataReceived = 0;
+		vibrations = 0;
+	}
+}
@@ -0,0 +1,218 @@
+package de.janbo.agendawatchface.sync;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+
+import de.janbo.agendawatchface.api.AgendaItem;
+import de.janbo.agendawatchface.api.LineOverflowBehavior;
+import de.janbo.agendawatchface.api.TimeDisplayType;
+
+/**
+ * Micro benchmarks for the work done per sync: merging the plugins' lists, item equality, encoding and trimming texts, looking up cached item encodings,
+ * design computation, encoding the items into messages and tracing protocol events (against building log strings). Runs on synthetic agendas of 10, 100 and 10000 items spread over 1 to 20 plugins and reports operations per second and bytes allocated per operation
+ * (like JMH's gc profiler, via the JVM's per-thread allocation counter).
+ *
+ * Not part of the app. Run it on a desktop JVM with PebbleKit and the plugin API on the classpath, e.g.
+ * javac -d bin -cp pebblekit.jar:pluginapi.jar ../src/de/janbo/agendawatchface/sync/*.java src/de/janbo/agendawatchface/sync/*.java
+ * java -cp bin:pebblekit.jar:pluginapi.jar de.janbo.agendawatchface.sync.SyncBenchmark [name filter]
+ */
+public class SyncBenchmark {
+	public static final int[] AGENDA_SIZES = { 10, 100, 10000 }; // number of items of all plugins together
+	public static final int[] PLUGIN_COUNTS = { 1, 5, 20 };
+	public static final int WARMUP_ITERATIONS = 3;
+	public static final int MEASUREMENT_ITERATIONS = 5;
+	public static final long ITERATION_TIME = 1000; // in ms
+	public static final int MAX_ITEMS_TO_SEND = 10; // like the default of pref_send_num_items
+	public static final long NOW = 1400000000000L; // fixed "current time" for the synthetic agendas
+
+	private static volatile Object sink; // results are written here so that the JIT cannot drop the work
+
+	/**
+	 * A single benchmarked operation
+	 */
+	private interface Operation {
+		public Object run();
+	}
+
+	public static void main(String[] args) {
+		String filter = args.length > 0 ? args[0] : "";
+		System.out.println(String.format("%-24s %8s %8s %14s %12s %12s", "Benchmark", "items", "plugins", "ops/s", "B/op", "alloc MB/s"));
+
+		for (int size : AGENDA_SIZES) {
+			for (int plugins : PLUGIN_COUNTS) {
+				final List<List<AgendaItem>> pluginLists = createAgenda(size, plugins, new Random(size * 31 + plugins));
+				run("merge", size, plugins, filter, new Operation() {
+					public Object run() {
+						return ItemMerger.merge(pluginLists, NOW, MAX_ITEMS_TO_SEND);
+					}
+				});
+			}
+
+			// The rest doesn't depend on how the items are distributed over plugins
+			final List<AgendaItem> items = new ArrayList<AgendaItem>();
+			for (List<AgendaItem> pluginItems : createAgenda(size, 1, new Random(size)))
+				items.addAll(pluginItems);
+			final List<AgendaItem> sameItems = new ArrayList<AgendaItem>();
+			for (List<AgendaItem> pluginItems : createAgenda(size, 1, new Random(size))) // equal, but not the same objects
+				sameItems.addAll(pluginItems);
+			VirtualScheduler scheduler = new VirtualScheduler(NOW);
+			final SyncEngine engine = new SyncEngine(new SimulatedWatch(scheduler, SyncEngine.CURRENT_WATCHAPP_VERSION_BUNDLED, 124, 0), scheduler, new SimulatedHost());
+			final List<EncodedItem> encodedItems = engine.encodeItems(items);
+
+			run("equals", size, 1, filter, new Operation() {
+				public Object run() {
+					return items.equals(sameItems);
+				}
+			});
+			run("encodeText", size, 1, filter, new Operation() {
+				public Object run() {
+					int length = 0;
+					for (AgendaItem item : items)
+						length += EncodedText.encode(item.line1.text).utf8.length + EncodedText.encode(item.line2.text).utf8.length;
+					return length;
+				}
+			});
+			run("encodeItems", size, 1, filter, new Operation() { // equal, but new item objects: cache lookups by content
+				private boolean same = false;
+
+				public Object run() {
+					same = !same;
+					return engine.encodeItems(same ? sameItems : items);
+				}
+			});
+			run("getPebbleDesign", size, 1, filter, new Operation() {
+				public Object run() {
+					int designs = 0;
+					for (AgendaItem item : items)
+						designs += engine.getPebbleDesign(item.line1, 1) + engine.getPebbleDesign(item.line2, 2);
+					return designs;
+				}
+			});
+			run("encode", size, 1, filter, new Operation() {
+				public Object run() {
+					return engine.createItemMessages(encodedItems);
+				}
+			});
+			run("computeSyncId", size, 1, filter, new Operation() {
+				public Object run() {
+					return engine.computeSyncId(encodedItems);
+				}
+			});
+			final SyncTrace trace = new SyncTrace(SyncTrace.DEFAULT_CAPACITY);
+			final int events = size;
+			run("trace", size, 1, filter, new Operation() { // one event per item, like the acks of a sync
+				public Object run() {
+					for (int i = 0; i < events; i++)
+						trace.record(NOW, SyncTrace.EVENT_ACK, SyncEngine.STATE_SENT_ITEM_WAIT_FOR_ACK, i % 256, i, 100);
+					return trace;
+				}
+			});
+			run("logString", size, 1, filter, new Operation() { // what the acks used to cost before a logger even saw them
+				public Object run() {
+					int length = 0;
+					for (int i = 0; i < events; i++)
+						length += ("Received ack in state " + (i % 8)).length();
+					return length;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Creates a synthetic agenda: items spread round-robin over the plugins, each plugin's list sorted (like the service keeps them). About a tenth of the items
+	 * are over already, texts are 5 to 80 characters long (some with non-ASCII characters), designs vary
+	 */
+	private static List<List<AgendaItem>> createAgenda(int size, int plugins, Random random) {
+		List<List<AgendaItem>> result = new ArrayList<List<AgendaItem>>();
+		for (int i = 0; i < plugins; i++)
+			result.add(new ArrayList<AgendaItem>());
+
+		for (int i = 0; i < size; i++) {
+			AgendaItem item = new AgendaItem("benchmark.plugin" + (i % plugins));
+			long start = NOW + (long) (random.nextDouble() * 30 * 24 * 60 * 60 * 1000) - (random.nextInt(10) == 0 ? 31L * 24 * 60 * 60 * 1000 : 0);
+			item.startTime = new Date(start);
+			item.endTime = random.nextInt(20) == 0 ? null : new Date(start + (1 + random.nextInt(8)) * 30 * 60 * 1000);
+			item.timezone = TimeZone.getTimeZone("Europe/Berlin");
+			item.line1 = createLine(random);
+			item.line2 = createLine(random);
+			result.get(i % plugins).add(item);
+		}
+
+		for (List<AgendaItem> pluginItems : result)
+			Collections.sort(pluginItems);
+		return result;
+	}
+
+	private static AgendaItem.Line createLine(Random random) {
+		AgendaItem.Line line = new AgendaItem.Line();
+		StringBuilder text = new StringBuilder();
+		int length = 5 + random.nextInt(76);
+		for (int i = 0; i < length; i++)
+			text.append(random.nextInt(15) == 0 ? '\u00e4' : (char) ('a' + random.nextInt(26)));
+		line.text = text.toString();
+		line.textBold = random.nextBoolean();
+		line.overflow = LineOverflowBehavior.values()[random.nextInt(LineOverflowBehavior.values().length)];
+		line.timeDisplay = random.nextBoolean() ? null : TimeDisplayType.values()[random.nextInt(TimeDisplayType.values().length)];
+		line.timeShowCountdown = random.nextBoolean() ? null : Boolean.valueOf(random.nextBoolean());
+		return line;
+	}
+
+	/**
+	 * Runs the warmup and measurement iterations of an operation and prints the results
+	 */
+	private static void run(String name, int size, int plugins, String filter, Operation operation) {
+		if (!name.contains(filter))
+			return;
+
+		for (int i = 0; i < WARMUP_ITERATIONS; i++)
+			measure(operation);
+
+		long ops = 0;
+		long nanos = 0;
+		long bytes = 0;
+		for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+			long[] result = measure(operation);
+			ops += result[0];
+			nanos += result[1];
+			bytes += result[2];
+		}
+
+		double seconds = nanos / 1e9;
+		System.out.println(String.format("%-24s %8d %8d %14.1f %12s %12s", name, size, plugins, ops / seconds, bytes < 0 ? "n/a" : String.format("%.1f", (double) bytes / ops),
+				bytes < 0 ? "n/a" : String.format("%.1f", bytes / seconds / (1024 * 1024))));
+	}
+
+	/**
+	 * Runs the operation for ITERATION_TIME
+	 *
+	 * @return number of operations, elapsed time in ns, bytes allocated (or -1 if the JVM can't tell)
+	 */
+	private static long[] measure(Operation operation) {
+		long bytesBefore = getAllocatedBytes();
+		long start = System.nanoTime();
+		long end = start + ITERATION_TIME * 1000 * 1000;
+		long ops = 0;
+		long now;
+		do {
+			sink = operation.run();
+			ops++;
+		} while ((now = System.nanoTime()) < end);
+		long bytesAfter = getAllocatedBytes();
+		return new long[] { ops, now - start, bytesBefore < 0 ? -1 : bytesAfter - bytesBefore };
+	}
+
+	/**
+	 * Gives the number of bytes the current thread allocated so far, or -1 if the JVM doesn't support that
+	 */
+	private static long getAllocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+}
@@ -0,0 +1,228 @@
+package de.janbo.agendawatchface.sync;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+
+import de.janbo.agendawatchface.api.AgendaItem;
+
+/**
+ * Regression checks for the SyncEngine against a SimulatedWatch on virtual time: a full sync, a delta sync and syncs over a link that nacks and loses messages.
+ * After each sync the watch must hold exactly the host's items, and a full sync with the packing watchapp must not cost more than with the older one. Prints
+ * messages, bytes and (virtual) time per scenario so that changes in sync cost show up, and exits with status 1 if a check fails.
+ *
+ * Not part of the app. Run it on a desktop JVM with PebbleKit and the plugin API on the classpath, e.g.
+ * javac -d bin -cp pebblekit.jar:pluginapi.jar ../src/de/janbo/agendawatchface/sync/*.java src/de/janbo/agendawatchface/sync/*.java
+ * java -cp bin:pebblekit.jar:pluginapi.jar de.janbo.agendawatchface.sync.SyncCheck
+ */
+public class SyncCheck {
+	public static final long START_TIME = 1400000000000L; // virtual time the checks start at
+	public static final long LATENCY = 50; // one way latency of the simulated link (in ms)
+	public static final int MAX_ITEMS_TO_SEND = 10; // like the default of pref_send_num_items
+	public static final int MAX_TASKS = 100000; // per runUntilIdle(), guards against syncs that never end
+	public static final int LOSSY_ROUNDS = 100; // number of changes synced over the lossy link
+	public static final int SYNC_ID_EXTRA_BYTES = 3; // INIT_DATA carries a 32 bit sync id for watchapps with hashed sync ids (8 bit for older ones)
+
+	private static int failures = 0;
+
+	public static void main(String[] args) {
+		Setup oldFullSync = null;
+		for (int version : new int[] { 14, SyncEngine.WATCHAPP_VERSION_PACKED_ITEMS }) {
+			Setup fullSync = checkFullSync(version);
+			checkDeltaSync(version);
+			checkLossySync(version);
+			if (oldFullSync == null)
+				oldFullSync = fullSync;
+			else
+				checkNotMoreExpensive("full sync v" + version, fullSync, oldFullSync);
+		}
+
+		if (failures > 0) {
+			System.out.println(failures + " check(s) failed");
+			System.exit(1);
+		}
+		System.out.println("All checks passed");
+	}
+
+	/**
+	 * A watch without data asks for it and gets all items
+	 *
+	 * @return the setup after the sync
+	 */
+	private static Setup checkFullSync(int version) {
+		Setup setup = new Setup(version, new Random(1));
+		setup.host.setItems(createItems(setup.random, MAX_ITEMS_TO_SEND));
+		setup.engine.endWaitingForPluginData();
+		setup.scheduler.runUntilIdle(MAX_TASKS);
+
+		check("full sync v" + version, setup);
+		report("full sync v" + version, setup);
+		return setup;
+	}
+
+	/**
+	 * Checks that a sync didn't take more messages or bytes than the same sync with an older watchapp (apart from the wider sync id)
+	 */
+	private static void checkNotMoreExpensive(String name, Setup setup, Setup old) {
+		if (setup.watch.getMessagesReceived() > old.watch.getMessagesReceived())
+			fail(name, "sent " + setup.watch.getMessagesReceived() + " messages, the older watchapp got " + old.watch.getMessagesReceived());
+		if (setup.watch.getBytesReceived() > old.watch.getBytesReceived() + SYNC_ID_EXTRA_BYTES)
+			fail(name, "sent " + setup.watch.getBytesReceived() + " bytes, the older watchapp got " + old.watch.getBytesReceived());
+	}
+
+	/**
+	 * Changing a few items of a synced watch only sends the changes
+	 */
+	private static void checkDeltaSync(int version) {
+		Setup setup = new Setup(version, new Random(2));
+		List<AgendaItem> items = createItems(setup.random, MAX_ITEMS_TO_SEND);
+		setup.host.setItems(items);
+		setup.engine.endWaitingForPluginData();
+		setup.scheduler.runUntilIdle(MAX_TASKS);
+		int fullSyncMessages = setup.watch.getMessagesReceived();
+		setup.watch.resetStatistics();
+		long start = setup.scheduler.currentTimeMillis();
+
+		items = new ArrayList<AgendaItem>(items);
+		items.set(3, createItem(setup.random, 100));
+		Collections.sort(items);
+		setup.host.setItems(items);
+		setup.engine.scheduleSync();
+		setup.scheduler.runUntilIdle(MAX_TASKS);
+
+		check("delta sync v" + version, setup);
+		if (version >= SyncEngine.WATCHAPP_VERSION_PACKED_ITEMS && setup.watch.getMessagesReceived() >= fullSyncMessages)
+			fail("delta sync v" + version, "sent " + setup.watch.getMessagesReceived() + " messages, the full sync only " + fullSyncMessages);
+		report("delta sync v" + version, setup, setup.scheduler.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Syncs changes over a link that nacks 10% of the messages and loses 5% of them (or their acks). The watch asks again if the engine gave up (like the
+	 * watchapp when it's opened again)
+	 */
+	private static void checkLossySync(int version) {
+		Setup setup = new Setup(version, new Random(3));
+		setup.watch.setNackProbability(0.1, 7);
+		setup.watch.setLossProbability(0.05);
+		List<AgendaItem> items = createItems(setup.random, MAX_ITEMS_TO_SEND);
+		setup.host.setItems(items);
+		setup.engine.endWaitingForPluginData();
+		setup.scheduler.runUntilIdle(MAX_TASKS);
+
+		for (int round = 0; round < LOSSY_ROUNDS; round++) {
+			items = new ArrayList<AgendaItem>(items);
+			int changes = 1 + setup.random.nextInt(3);
+			for (int i = 0; i < changes; i++) {
+				int op = setup.random.nextInt(3);
+				if (op == 0 && !items.isEmpty())
+					items.remove(setup.random.nextInt(items.size()));
+				else if (op == 1 || items.isEmpty())
+					items.add(createItem(setup.random, 200));
+				else
+					items.set(setup.random.nextInt(items.size()), createItem(setup.random, 200));
+			}
+			Collections.sort(items);
+			if (items.size() > MAX_ITEMS_TO_SEND)
+				items = new ArrayList<AgendaItem>(items.subList(0, MAX_ITEMS_TO_SEND));
+			setup.host.setItems(items);
+			setup.engine.scheduleSync();
+			setup.scheduler.advance(60 * 60 * 1000); // long enough for paused syncs to resume
+			setup.scheduler.runUntilIdle(MAX_TASKS);
+			if (setup.engine.getState() != SyncEngine.STATE_WAIT_FOR_WATCH_REQUEST || setup.watch.getSyncId() == 0) {
+				setup.watch.sendRequest();
+				setup.scheduler.runUntilIdle(MAX_TASKS);
+			}
+
+			if (!check("lossy sync v" + version + " round " + round, setup))
+				break;
+		}
+		if (setup.watch.getBrokenSyncs() > 0)
+			fail("lossy sync v" + version, setup.watch.getBrokenSyncs() + " syncs left the watch with incomplete data");
+		report("lossy sync v" + version, setup);
+	}
+
+	/**
+	 * Checks that the watch holds the host's items, as the engine encodes them
+	 *
+	 * @return false iff the check failed
+	 */
+	private static boolean check(String name, Setup setup) {
+		List<EncodedItem> expected = setup.engine.encodeItems(setup.host.getItemsToSend(setup.scheduler.currentTimeMillis()));
+		List<SimulatedWatch.Item> actual = setup.watch.getItems();
+		if (setup.engine.getState() != SyncEngine.STATE_WAIT_FOR_WATCH_REQUEST)
+			return fail(name, "sync didn't finish (state " + setup.engine.getState() + ")");
+		if (actual.size() != expected.size())
+			return fail(name, "watch has " + actual.size() + " items instead of " + expected.size());
+		for (int i = 0; i < expected.size(); i++) {
+			EncodedItem item = expected.get(i);
+			SimulatedWatch.Item watchItem = actual.get(i);
+			if (watchItem == null || !item.text1.text.equals(watchItem.text1) || !item.text2.text.equals(watchItem.text2) || item.design1 != watchItem.design1
+					|| item.design2 != watchItem.design2 || item.startTime != watchItem.startTime || item.endTime != watchItem.endTime)
+				return fail(name, "item " + i + " differs");
+		}
+		return true;
+	}
+
+	private static boolean fail(String name, String message) {
+		System.out.println("FAILED " + name + ": " + message);
+		failures++;
+		return false;
+	}
+
+	private static void report(String name, Setup setup) {
+		report(name, setup, setup.scheduler.currentTimeMillis() - START_TIME);
+	}
+
+	private static void report(String name, Setup setup, long time) {
+		System.out.println(String.format("%-20s %6d msgs %8d bytes %5d nacks %5d lost %10d ms", name, setup.watch.getMessagesReceived(), setup.watch.getBytesReceived(),
+				setup.watch.getNacksSent(), setup.watch.getMessagesLost(), time));
+	}
+
+	/**
+	 * Engine, watch and host connected on a VirtualScheduler
+	 */
+	private static class Setup {
+		final Random random;
+		final VirtualScheduler scheduler = new VirtualScheduler(START_TIME);
+		final SimulatedHost host = new SimulatedHost();
+		final SimulatedWatch watch;
+		final SyncEngine engine;
+
+		Setup(int version, Random random) {
+			this.random = random;
+			watch = new SimulatedWatch(scheduler, version, 124, LATENCY);
+			engine = new SyncEngine(watch, scheduler, host);
+			watch.connect(engine);
+		}
+	}
+
+	/**
+	 * Creates count items within the next days, sorted (like the service gives them)
+	 */
+	private static List<AgendaItem> createItems(Random random, int count) {
+		List<AgendaItem> result = new ArrayList<AgendaItem>();
+		for (int i = 0; i < count; i++)
+			result.add(createItem(random, 100));
+		Collections.sort(result);
+		return result;
+	}
+
+	/**
+	 * Creates an item starting within the next hours. Some texts are too long for the watch, some are shared with other items
+	 */
+	private static AgendaItem createItem(Random random, int hours) {
+		AgendaItem item = new AgendaItem("check.plugin");
+		long start = START_TIME + (1 + random.nextInt(hours)) * 60L * 60 * 1000;
+		item.startTime = new Date(start);
+		item.endTime = random.nextInt(10) == 0 ? null : new Date(start + 30 * 60 * 1000);
+		item.timezone = TimeZone.getTimeZone("Europe/Berlin");
+		item.line1 = new AgendaItem.Line();
+		item.line1.text = "Event " + random.nextInt(1000) + (random.nextInt(5) == 0 ? " with a title much too long to fit on the watch in one piece" : "");
+		item.line2 = new AgendaItem.Line();
+		item.line2.text = random.nextBoolean() ? "Room " + random.nextInt(5) : "Calendar";
+		return item;
+	}
+}
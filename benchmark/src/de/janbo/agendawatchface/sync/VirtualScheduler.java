@@ -0,0 +1,100 @@
+package de.janbo.agendawatchface.sync;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * SyncScheduler running on virtual time, for driving a SyncEngine and SimulatedWatch without Android (and without actually waiting). Tasks run in the order of
+ * their due time (tasks due at the same time in the order they were posted) when calling runUntilIdle() or advance()
+ */
+public class VirtualScheduler implements SyncScheduler {
+	private long now; // current virtual time since epoch in ms
+	private long nextSequenceNumber = 0; // used to keep tasks due at the same time in order
+	private PriorityQueue<Task> tasks = new PriorityQueue<Task>();
+
+	private static class Task implements Comparable<Task> {
+		public final long dueTime;
+		public final long sequenceNumber;
+		public final Runnable runnable;
+
+		public Task(long dueTime, long sequenceNumber, Runnable runnable) {
+			this.dueTime = dueTime;
+			this.sequenceNumber = sequenceNumber;
+			this.runnable = runnable;
+		}
+
+		public int compareTo(Task other) {
+			if (dueTime != other.dueTime)
+				return dueTime < other.dueTime ? -1 : 1;
+			return sequenceNumber < other.sequenceNumber ? -1 : sequenceNumber == other.sequenceNumber ? 0 : 1;
+		}
+	}
+
+	/**
+	 * @param startTime
+	 *            virtual time since epoch in ms to start at
+	 */
+	public VirtualScheduler(long startTime) {
+		this.now = startTime;
+	}
+
+	public void postDelayed(Runnable r, long delayMillis) {
+		tasks.add(new Task(now + Math.max(0, delayMillis), nextSequenceNumber++, r));
+	}
+
+	public void removeCallbacks(Runnable r) {
+		Iterator<Task> it = tasks.iterator();
+		while (it.hasNext())
+			if (it.next().runnable == r)
+				it.remove();
+	}
+
+	public long currentTimeMillis() {
+		return now;
+	}
+
+	/**
+	 * Runs tasks (including the ones they post) until there are none left
+	 *
+	 * @param maxTasks
+	 *            stop after this many tasks (guards against tasks that keep posting themselves)
+	 * @return number of tasks run
+	 */
+	public int runUntilIdle(int maxTasks) {
+		int count = 0;
+		while (!tasks.isEmpty() && count < maxTasks) {
+			runNext();
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Advances virtual time by the given amount, running all tasks that become due
+	 *
+	 * @return number of tasks run
+	 */
+	public int advance(long millis) {
+		long until = now + millis;
+		int count = 0;
+		while (!tasks.isEmpty() && tasks.peek().dueTime <= until) {
+			runNext();
+			count++;
+		}
+		now = until;
+		return count;
+	}
+
+	/**
+	 * Returns true iff there are tasks waiting
+	 */
+	public boolean hasPendingTasks() {
+		return !tasks.isEmpty();
+	}
+
+	private void runNext() {
+		Task task = tasks.poll();
+		now = Math.max(now, task.dueTime);
+		task.runnable.run();
+	}
+}
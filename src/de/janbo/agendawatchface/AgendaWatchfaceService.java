@@ -1,14 +1,20 @@
 package de.janbo.agendawatchface;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.json.JSONException;
 
+import android.app.AlarmManager;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
@@ -17,11 +23,16 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Parcelable;
+import android.os.Process;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.support.v4.app.NotificationCompat;
 import android.util.Log;
@@ -33,21 +44,32 @@ import com.getpebble.android.kit.util.PebbleDictionary;
 
 import de.janbo.agendawatchface.api.AgendaItem;
 import de.janbo.agendawatchface.api.AgendaWatchfacePlugin;
-import de.janbo.agendawatchface.api.TimeDisplayType;
+import de.janbo.agendawatchface.sync.ItemStore;
+import de.janbo.agendawatchface.sync.ItemUpdate;
+import de.janbo.agendawatchface.sync.RollingHistogram;
+import de.janbo.agendawatchface.sync.SyncEngine;
+import de.janbo.agendawatchface.sync.SyncHost;
+import de.janbo.agendawatchface.sync.SyncScheduler;
+import de.janbo.agendawatchface.sync.SyncStats;
+import de.janbo.agendawatchface.sync.WatchTransport;
 
 /**
  * Service that handles aggregation of items and communication with the watch.
- * 
+ * The work is done on a dedicated thread (syncThread). Receivers and onStartCommand() only post events to its handler, so the service's state needs no locking.
+ * The protocol itself is implemented by the SyncEngine, this service connects it to PebbleKit, the SharedPreferences and the plugins.
+ *
  * @author Jan
  */
-public class AgendaWatchfaceService extends Service {
+public class AgendaWatchfaceService extends Service implements SyncHost {
 	public static final UUID PEBBLE_APP_UUID = UUID.fromString("1f366804-f1d2-4288-b71a-708661777887");
-	public static final byte CURRENT_WATCHAPP_VERSION_BUNDLED = 14; // bundled watchapp version
-	public static final byte CURRENT_WATCHAPP_VERSION_MINIMUM = 8; // smallest version of watchapp that is still supported
 
-	public static final long WAIT_TIME_FOR_PLUGIN_REPORTS = 2 * 1000; // maximum time to wait with first sync before all plugins report (in ms)
+	public static final long WAIT_TIME_FOR_PLUGIN_REPORTS = 2 * 1000; // maximum time to wait with first sync before all plugins report (in ms), as long as we don't know how fast they are
+	public static final long MIN_WAIT_TIME_FOR_PLUGIN_REPORTS = 200; // bounds for the wait time derived from the plugins' response times (in ms)
+	public static final long MAX_WAIT_TIME_FOR_PLUGIN_REPORTS = 10 * 1000;
+	public static final String DEFAULT_PLUGIN_DATA_TTL = "24"; // hours a plugin's data is kept without the plugin reporting (pref_plugin_data_ttl, "0" keeps it forever)
 	public static final int PLUGIN_SYNC_INTERVAL = 30; // interval to get new data from plugins (in minutes)
-	public static final int MAX_STRING_LEN_TO_SEND = 49; //how long (in bytes) may the strings be that we send to the watch?
+	public static final String SYNC_STATE_FILE_NAME = "sync_state.bin"; // file in getFilesDir() holding the SyncStateSnapshot of the last successful sync
+	public static final String SYNC_TRACE_FILE_NAME = "sync_trace.txt"; // file in getFilesDir() holding the SyncTrace as of the last failed sync
 
 	// Android app internals
 	public static final String INTENT_ACTION_WATCHAPP_GIVE_INFO = "de.janbo.agendawatchface.intent.action.givedata"; // answers to requests will be broadcast using this action
@@ -55,101 +77,149 @@ public class AgendaWatchfaceService extends Service {
 	public static final String INTENT_ACTION_HANDLE_WATCHAPP_MESSAGE = "de.janbo.agendawatchface.intent.action.handlemessage"; // handle an incoming message from the watch
 	public static final String INTENT_ACTION_REFRESH_PLUGIN_DATA = "de.janbo.agendawatchface.intent.action.refreshplugindata"; // ask plugins for fresh data, then sync with watch
 	public static final String INTENT_ACTION_FORCE_WATCH_SYNC = "de.janbo.agendawatchface.intent.action.forcewatchsync"; // begins a sync with the watch, doesn't update plugin data
+	public static final String INTENT_ACTION_ITEMS_CHANGED = "de.janbo.agendawatchface.intent.action.itemschanged"; // alarm: an item on the watch is over, sync without it
+	public static final String INTENT_ACTION_SETTINGS_CHANGED = "de.janbo.agendawatchface.intent.action.settingschanged"; // preferences changed, tell the watch if it shows something different now
 	public static final String INTENT_EXTRA_WATCHAPP_VERSION = "de.janbo.agendawatchface.intent.extra.version"; // version of watchface or -1 if unknown
 	public static final String INTENT_EXTRA_WATCHAPP_LAST_SYNC = "de.janbo.agendawatchface.intent.extra.lastsync"; // time since epoch in ms for last successful sync. Or -1
+	public static final String INTENT_EXTRA_SYNC_STATS = "de.janbo.agendawatchface.intent.extra.syncstats"; // Bundle with the SYNC_STATS_... values below
+
+	// Keys in INTENT_EXTRA_SYNC_STATS
+	public static final String SYNC_STATS_SYNCS_COMPLETED = "syncs"; // int[], completed syncs per SyncStats.SYNC_... type
+	public static final String SYNC_STATS_SYNCS_ABORTED = "aborted"; // int
+	public static final String SYNC_STATS_MESSAGES_SENT = "messages"; // long, all messages including resent ones
+	public static final String SYNC_STATS_BYTES_SENT = "bytes"; // long
+	public static final String SYNC_STATS_NACKS = "nacks"; // int
+	public static final String SYNC_STATS_RETRIES = "retries"; // int
+	public static final String SYNC_STATS_ACK_TIMEOUTS = "timeouts"; // int
+	public static final String SYNC_STATS_RETRY_EXHAUSTIONS = "exhaustions"; // int
+	public static final String SYNC_STATS_LATENCY = "latency"; // long[] {median, 90th percentile, max} in ms over the last SyncStats.WINDOW_SIZE syncs. -1 if there are none
+	public static final String SYNC_STATS_LATENCY_HISTOGRAM = "latency_histogram"; // int[], number of those syncs per bucket
+	public static final String SYNC_STATS_LATENCY_BOUNDS = "latency_bounds"; // long[], upper bounds (ms) of the buckets but the last
+	public static final String SYNC_STATS_MESSAGES_PER_SYNC = "messages_per_sync"; // long[] {median, 90th percentile, max}
+	public static final String SYNC_STATS_BYTES_PER_SYNC = "bytes_per_sync"; // long[] {median, 90th percentile, max}
+	public static final String SYNC_STATS_RTT = "rtt"; // long, smoothed round trip time in ms or -1
+	public static final String SYNC_STATS_CACHE_HITS = "cache_hits"; // int, item encodings found in the cache
+	public static final String SYNC_STATS_CACHE_MISSES = "cache_misses"; // int
 
 	// Intents for communication with plugins
 	public static final String INTENT_ACTION_ACCEPT_DATA = "de.janbo.agendawatchface.intent.action.acceptdata";
 	public static final String INTENT_ACTION_ACCEPT_DISCOVER = "de.janbo.agendawatchface.intent.action.acceptdiscovery";
 
-	// Protocol states
-	public static final int STATE_WAIT_FOR_WATCH_REQUEST = 0; // Nothing happening
-	public static final int STATE_INIT_SENT = 1; // First message (COMMAND_INIT_DATA) sent, waiting for ack
-	public static final int STATE_SENT_ITEM_WAIT_FOR_ACK = 2; // sent item, waiting for the watch to ack
-	public static final int STATE_SENT_ITEM_1_WAIT_FOR_ACK = 8; //sent first item half, waiting for the watck to ack
-	public static final int STATE_SENT_ITEM_2_WAIT_FOR_ACK = 9; //sent second item half, waiting for the watck to ack
-	public static final int STATE_SENT_DONE_MSG_WAIT_FOR_ACK = 4; // sent the done message, waiting for the watch to ack
-	public static final int STATE_RESTART_SYNC_ON_ACK = 5; // we were in the middle of a sync, but the watch wants a restart (act on this when receiving the next ack)
-	public static final int STATE_NO_NEW_DATA_MSG_SENT = 6; // we sent COMMAND_NO_NEW_DATA, waiting for ack
-	public static final int STATE_INITIAL_POPULATING_PLUGIN_DATA = 7; // the service is fresh and we don't have recent data available. Waiting for time to pass (some Runnable on a handler will start
-																		// first sync)
-
-	// Pebble dictionary keys
-	public static final int PEBBLE_KEY_COMMAND = 0; // uint_8
-	public static final int PEBBLE_KEY_VERSION = 1; // uint_8, minimal watchapp version for syncing
-	public static final int PEBBLE_KEY_SYNC_ID = 2; // uint_8, id for this particular sync
-	public static final int PEBBLE_KEY_NUM_ITEMS = 10; // uint_8
-	public static final int PEBBLE_KEY_ITEM_TEXT1 = 1; // String
-	public static final int PEBBLE_KEY_ITEM_TEXT2 = 2; // String
-	public static final int PEBBLE_KEY_ITEM_DESIGN1 = 3; // uint_8, format: 0 if row hidden. 0x02-0x08 TimeDisplayType, 0x10 countdown on/off, 0x12 bold text on/off
-	public static final int PEBBLE_KEY_ITEM_DESIGN2 = 4; // uint_8, format like DESIGN1
-	public static final int PEBBLE_KEY_ITEM_START_TIME = 20; // int_32, in format: minutes + 60*hours + 60*24*weekday + 60*24*7*dayOfMonth + 60*24*7*32*(month-1) + 60*24*7*32*12*(year-1900). Or 0 to
-																// simply show "today"
-	public static final int PEBBLE_KEY_ITEM_END_TIME = 30; // int_32 or 0 to make it never end
-	public static final int PEBBLE_KEY_ITEM_INDEX = 5; // uint_8, index numbering the items in a sync (0 being the first item)
-	public static final int PEBBLE_KEY_SETTINGS_BOOLFLAGS = 40; // uint_32
-	public static final int PEBBLE_KEY_VIBRATE = 6; //uint_8, if nonzero: instructs watch to vibrate according to pattern (PEBBLE_VIBRATE_... constants). Sent in DONE message
-
-	public static final int PEBBLE_TO_PHONE_KEY_VERSION = 0; // current version of the watchface
-	public static final int PEBBLE_TO_PHONE_KEY_VERSIONBACKWARD = 1; // version of bundled firmware that this app must have to support the watchface version
-	public static final int PEBBLE_TO_PHONE_KEY_LAST_SYNC_ID = 2; // id of the last sync that went through correctly according to watch (0 to force)
-
-	// Pebble commands
-	public static final byte PEBBLE_COMMAND_ITEM = 1; //sending item in one message
-	public static final byte PEBBLE_COMMAND_ITEM_1 = 6; //sending first half of item
-	public static final byte PEBBLE_COMMAND_ITEM_2 = 7; //sending second half of item
-	public static final byte PEBBLE_COMMAND_INIT_DATA = 0;
-	public static final byte PEBBLE_COMMAND_DONE = 2;
-	public static final byte PEBBLE_COMMAND_NO_NEW_DATA = 4;
-	public static final byte PEBBLE_COMMAND_FORCE_REQUEST = 5; // requests the watch to send a request (to update version, etc.)
-	
-	// Vibrate options
-	public static final byte PEBBLE_VIBRATE_NONE = 0;
-	public static final byte PEBBLE_VIBRATE_SHORT = 1;
-	public static final byte PEBBLE_VIBRATE_TWICE_SHORT = 2;
-	public static final byte PEBBLE_VIBRATE_LONG = 3;
-
 	// Variables
-	private int state = STATE_INITIAL_POPULATING_PLUGIN_DATA;
-	private int currentIndex = -1; // index that is currently sent
-	private List<AgendaItem> itemsToSend = null; // data we're currently sending to the watch
-	private byte currentSyncId = 0; // id of the current sync process (incremented for each new COMMAND_INIT_DATA)
-	private List<AgendaItem> itemsSuccessfullySent = null; // last list we sent completely (DONE message). Data corresponds to lastSuccessfulSyncId below
-	private byte lastSuccessfulSyncId = 0; // id that we gave the watchface for the last sync that went through (DONE message) (used for checking for new data) - 0 means "don't know, send anyway!"
-	private byte lastWatchReportedSyncId = 0; // the newest sync id reported by the watch in a request
-	private boolean vibrate_on_next_done = false; // if set to true, will instruct watch to vibrate after sync. It's auto-reset after that.
-
-	private HashMap<String, List<AgendaItem>> pluginData = new HashMap<String, List<AgendaItem>>(); // Maps pluginId -> current list of items
+	private ItemStore itemStore = new ItemStore(); // Maps pluginId -> current list of items
+	private PluginResponseTracker pluginResponses = new PluginResponseTracker(); // which plugins we know and how fast they answer
+	private SyncEngine engine = null; // the protocol with the watch
+	private PluginDataChannel dataChannel = null; // bound channel for plugins with many items
+	private PluginThrottle throttle = new PluginThrottle(); // limits what each plugin may send
 
 	private BroadcastReceiver ackReceiver = null;
 	private BroadcastReceiver nackReceiver = null;
 
-	private PebbleDictionary lastSentDict = null; // data last sent. Used for retries
-	private int transactionFlying = -1; // id of the transaction last sent.
-	private int numRetries = 0; // number of times we tried to send this data
-
 	private long notificationIssued = -1; // time since epoch in ms where update prompt was issued last
-	private int watchfaceVersion = -1; // last version the watchface reported
-	private long lastSync = -1; // time since epoch in ms where last sync went through
 
 	private static AgendaWatchfaceService instance = null; // static reference to the service
-	private Handler handler = null;
+	private HandlerThread syncThread = null; // thread running the protocol. Everything except enqueueing events happens there
+	private Handler handler = null; // handler for syncThread
+	private ExecutorService snapshotWriter = null; // writes SyncStateSnapshots in the background
+
+	/**
+	 * Hands changed settings to the engine (kept in a field since SharedPreferences only keeps weak references to its listeners)
+	 */
+	private SharedPreferences.OnSharedPreferenceChangeListener settingsListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+		public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+			handler.post(new Runnable() {
+				public void run() {
+					engine.settingsChanged();
+				}
+			});
+		}
+	};
+
+	/**
+	 * Drops the data of plugins that were uninstalled (they cannot tell us anymore)
+	 */
+	private BroadcastReceiver packageRemovedReceiver = new BroadcastReceiver() {
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			if (intent.getData() == null || intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)) // updates are followed by new data anyway
+				return;
+			final String packageName = intent.getData().getSchemeSpecificPart();
+			handler.post(new Runnable() {
+				public void run() {
+					handlePackageRemoved(packageName);
+				}
+			});
+		}
+	};
 
 	private BroadcastReceiver infoRequestReceiver = new BroadcastReceiver() {
 		@Override
 		public void onReceive(Context context, Intent intent) {
-			broadcastCurrentData();
+			handler.post(new Runnable() {
+				public void run() {
+					broadcastCurrentData();
+				}
+			});
+		}
+	};
+
+	/**
+	 * Sends the engine's messages using PebbleKit
+	 */
+	private WatchTransport pebbleTransport = new WatchTransport() {
+		public void sendMessage(PebbleDictionary data, int transactionId) {
+			PebbleKit.sendDataToPebbleWithTransactionId(getApplicationContext(), PEBBLE_APP_UUID, data, transactionId);
+		}
+	};
+
+	/**
+	 * Runs the engine's timers on the sync thread
+	 */
+	private SyncScheduler handlerScheduler = new SyncScheduler() {
+		public void postDelayed(Runnable r, long delayMillis) {
+			handler.postDelayed(r, delayMillis);
+		}
+
+		public void removeCallbacks(Runnable r) {
+			handler.removeCallbacks(r);
+		}
+
+		public long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+	};
+
+	/**
+	 * Hands the data uploaded through the PluginDataChannel over like data from intents
+	 */
+	private PluginDataChannel.Listener dataChannelListener = new PluginDataChannel.Listener() {
+		public void onPluginData(List<AgendaItem> items, String pluginId, boolean vibrate, long fingerprint) {
+			handleReceivedPluginData(items, pluginId, vibrate, fingerprint);
+		}
+
+		public boolean isPluginDataUnchanged(String pluginId, long fingerprint) {
+			return !throttle.hasPending(pluginId) && itemStore.hasFingerprint(pluginId, fingerprint);
+		}
+
+		public void onPluginDataUnchanged(String pluginId) {
+			handleUnchangedPluginData(pluginId);
+		}
+
+		public void onPluginUpdate(ItemUpdate update, String pluginId, boolean vibrate) {
+			handleReceivedPluginUpdate(update, pluginId, vibrate);
 		}
 	};
 
 	@Override
-	public IBinder onBind(Intent intent) { // this is not a bound service
+	public IBinder onBind(Intent intent) { // only plugins bind to this service, to use the PluginDataChannel
+		if (intent != null && PluginDataChannel.INTENT_ACTION_BIND_DATA_CHANNEL.equals(intent.getAction()))
+			return dataChannel.getMessenger().getBinder();
 		return null;
 	}
 
 	/**
 	 * Acks and handles a received message (starts service if not currently running). Should be called by the PebbleDataBroadcastReceiver for all (data) messages from the watch
-	 * 
+	 *
 	 * @param context
 	 * @param msgData
 	 *            the msgData (json String) from the original intent
@@ -168,36 +238,38 @@ public class AgendaWatchfaceService extends Service {
 		context.startService(intent);
 	}
 
-	/**
-	 * Checks the message's content and acts accordingly
-	 * 
-	 * @param dict
-	 */
-	private void handleReceivedWatchDataInternal(PebbleDictionary data) {
-		watchRequestReceived(data.getInteger(PEBBLE_TO_PHONE_KEY_VERSION), data.contains(PEBBLE_TO_PHONE_KEY_VERSIONBACKWARD) ? data.getInteger(PEBBLE_TO_PHONE_KEY_VERSIONBACKWARD) : 4,
-				data.contains(PEBBLE_TO_PHONE_KEY_LAST_SYNC_ID) ? data.getUnsignedInteger(PEBBLE_TO_PHONE_KEY_LAST_SYNC_ID).byteValue() : (byte) 0);
-	}
-
 	@Override
 	public void onCreate() {
 		super.onCreate();
 
 		Log.d("PebbleCommunication", "Service created");
 
-		watchfaceVersion = PreferenceManager.getDefaultSharedPreferences(getApplicationContext()).getInt("last_reported_watchface_version", -1);
+		syncThread = new HandlerThread("AgendaWatchfaceSync", Process.THREAD_PRIORITY_BACKGROUND);
+		syncThread.start();
+		handler = new Handler(syncThread.getLooper());
+		engine = new SyncEngine(pebbleTransport, handlerScheduler, this);
+		dataChannel = new PluginDataChannel(handler, dataChannelListener);
 
-		// Register receivers
+		// Register receivers. They only hand the events over to the sync thread
 		ackReceiver = PebbleKit.registerReceivedAckHandler(this, new PebbleAckReceiver(PEBBLE_APP_UUID) {
 			@Override
-			public void receiveAck(Context context, int transactionId) {
-				ackReceived(transactionId);
+			public void receiveAck(Context context, final int transactionId) {
+				handler.post(new Runnable() {
+					public void run() {
+						engine.ackReceived(transactionId);
+					}
+				});
 			}
 		});
 
 		nackReceiver = PebbleKit.registerReceivedNackHandler(this, new PebbleNackReceiver(PEBBLE_APP_UUID) {
 			@Override
-			public void receiveNack(Context context, int transactionId) {
-				nackReceived(transactionId);
+			public void receiveNack(Context context, final int transactionId) {
+				handler.post(new Runnable() {
+					public void run() {
+						engine.nackReceived(transactionId);
+					}
+				});
 			}
 		});
 
@@ -205,26 +277,132 @@ public class AgendaWatchfaceService extends Service {
 		IntentFilter filter = new IntentFilter();
 		filter.addAction(AgendaWatchfaceService.INTENT_ACTION_WATCHAPP_REQUEST_INFO);
 		registerReceiver(infoRequestReceiver, filter);
+		IntentFilter packageFilter = new IntentFilter(Intent.ACTION_PACKAGE_REMOVED);
+		packageFilter.addDataScheme("package");
+		registerReceiver(packageRemovedReceiver, packageFilter);
+		PreferenceManager.getDefaultSharedPreferences(getApplicationContext()).registerOnSharedPreferenceChangeListener(settingsListener);
 
 		instance = this;
-		handler = new Handler();
+		snapshotWriter = Executors.newSingleThreadExecutor();
 
-		startInitialPluginDataGetting();
+		handler.post(new Runnable() { // runs before any of the events enqueued later
+			public void run() {
+				initialize();
+			}
+		});
+	}
+
+	/**
+	 * Loads what we know from earlier runs and starts getting plugin data (on the sync thread)
+	 */
+	private void initialize() {
+		engine.setWatchfaceVersion(PreferenceManager.getDefaultSharedPreferences(getApplicationContext()).getInt("last_reported_watchface_version", -1));
+		pluginResponses.fromJsonString(PreferenceManager.getDefaultSharedPreferences(getApplicationContext()).getString("plugin_response_times", null));
+
+		if (restoreSyncState()) { // we know what the watch has. Answer it right away, plugin updates will follow as deltas
+			issueGatherPluginData();
+			engine.endWaitingForPluginData();
+		} else
+			startInitialPluginDataGetting();
+	}
+
+	/**
+	 * Restores plugin data and the watch's state from the snapshot written after the last successful sync
+	 *
+	 * @return true iff there was a snapshot to restore
+	 */
+	private boolean restoreSyncState() {
+		SyncStateSnapshot snapshot = SyncStateSnapshot.read(new File(getFilesDir(), SYNC_STATE_FILE_NAME));
+		if (snapshot == null)
+			return false;
+
+		Log.d("AgendaWatchfaceService", "Restored sync state of " + snapshot.pluginData.size() + " plugins, data id " + snapshot.lastSuccessfulSyncId);
+		itemStore = new ItemStore(snapshot.pluginData, snapshot.itemIds, snapshot.lastSync);
+		engine.restoreState(snapshot.itemsSuccessfullySent, snapshot.lastSuccessfulSyncId, snapshot.lastSync);
+		return true;
+	}
+
+	/**
+	 * Writes the current plugin data and the watch's state to disk (in the background)
+	 */
+	private void saveSyncState() {
+		final SyncStateSnapshot snapshot = new SyncStateSnapshot(itemStore.toMap(), itemStore.getItemIds(), engine.getItemsSuccessfullySent(), engine.getLastSuccessfulSyncId(),
+				engine.getLastSync());
+		final File file = new File(getFilesDir(), SYNC_STATE_FILE_NAME);
+		snapshotWriter.execute(new Runnable() {
+			public void run() {
+				try {
+					snapshot.write(file);
+				} catch (IOException e) {
+					Log.e("AgendaWatchfaceService", "Could not write sync state", e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Writes the engine's SyncTrace to SYNC_TRACE_FILE_NAME (in the background)
+	 */
+	private void saveSyncTrace() {
+		final StringWriter text = new StringWriter();
+		engine.getTrace().dump(new PrintWriter(text));
+		final File file = new File(getFilesDir(), SYNC_TRACE_FILE_NAME);
+		snapshotWriter.execute(new Runnable() {
+			public void run() {
+				FileWriter writer = null;
+				try {
+					writer = new FileWriter(file);
+					writer.write(text.toString());
+				} catch (IOException e) {
+					Log.e("AgendaWatchfaceService", "Could not write sync trace", e);
+				} finally {
+					if (writer != null)
+						try {
+							writer.close();
+						} catch (IOException e) {
+						}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Prints the engine's SyncTrace (adb shell dumpsys activity service AgendaWatchfaceService)
+	 */
+	@Override
+	protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+		engine.getTrace().dump(writer);
+		throttle.dump(writer);
 	}
 
 	/**
 	 * Asks plugins for data and syncs watch after some seconds
 	 */
-	protected synchronized void startInitialPluginDataGetting() {
-		state = STATE_INITIAL_POPULATING_PLUGIN_DATA;
+	protected void startInitialPluginDataGetting() {
+		engine.beginWaitingForPluginData();
 		issueGatherPluginData(); // ask plugins for data
-		handler.postDelayed(new Runnable() { // wait some time, then issue the first sync
-					public void run() {
-						Log.d("AgendaWatchfaceService", "Ending STATE_INITIAL_POPULATING_PLUGIN_DATA, starting watch sync");
-						state = STATE_WAIT_FOR_WATCH_REQUEST;
-						sendForceRequestMessage();
-					}
-				}, WAIT_TIME_FOR_PLUGIN_REPORTS);
+		handler.removeCallbacks(initialPluginDataTimeout);
+		handler.postDelayed(initialPluginDataTimeout, pluginResponses.getTimeout(WAIT_TIME_FOR_PLUGIN_REPORTS, MIN_WAIT_TIME_FOR_PLUGIN_REPORTS, MAX_WAIT_TIME_FOR_PLUGIN_REPORTS));
+	}
+
+	/**
+	 * Ends STATE_INITIAL_POPULATING_PLUGIN_DATA if not all plugins reported in time
+	 */
+	private Runnable initialPluginDataTimeout = new Runnable() {
+		public void run() {
+			Log.d("AgendaWatchfaceService", "Not all plugins reported in time");
+			endInitialPluginDataGetting();
+		}
+	};
+
+	/**
+	 * Ends STATE_INITIAL_POPULATING_PLUGIN_DATA and starts the first sync (if still in that state)
+	 */
+	private void endInitialPluginDataGetting() {
+		if (!engine.endWaitingForPluginData())
+			return;
+		handler.removeCallbacks(initialPluginDataTimeout);
+		PreferenceManager.getDefaultSharedPreferences(getApplicationContext()).edit().putString("plugin_response_times", pluginResponses.toJsonString()).commit();
 	}
 
 	@Override
@@ -235,18 +413,60 @@ public class AgendaWatchfaceService extends Service {
 			unregisterReceiver(ackReceiver);
 		if (nackReceiver != null)
 			unregisterReceiver(nackReceiver);
+		unregisterReceiver(packageRemovedReceiver);
+		PreferenceManager.getDefaultSharedPreferences(getApplicationContext()).unregisterOnSharedPreferenceChangeListener(settingsListener);
 
 		instance = null;
-		handler = null;
-		PreferenceManager.getDefaultSharedPreferences(getApplicationContext()).edit().putInt("last_reported_watchface_version", watchfaceVersion).commit();
+		handler.post(new Runnable() { // finish the events enqueued so far, then end the thread
+			public void run() {
+				shutdown();
+			}
+		});
+	}
+
+	/**
+	 * Stores what we want to remember for the next run and ends the sync thread (on the sync thread)
+	 */
+	private void shutdown() {
+		handler.removeCallbacks(initialPluginDataTimeout);
+		handler.removeCallbacks(pendingPluginDataTimer);
+		handler.removeCallbacks(staleDataTimer);
+		engine.shutdown();
+		snapshotWriter.shutdown(); // pending writes still finish
+		PreferenceManager.getDefaultSharedPreferences(getApplicationContext()).edit().putInt("last_reported_watchface_version", engine.getWatchfaceVersion())
+				.putString("plugin_response_times", pluginResponses.toJsonString()).commit();
+		syncThread.quit();
 	}
 
 	@Override
-	public synchronized int onStartCommand(Intent intent, int flags, int startId) {
+	public int onStartCommand(final Intent intent, int flags, int startId) {
+		if (intent != null && AgendaWatchfacePlugin.MAIN_SERVICE_INTENT_ACTION_ACCEPT_DATA.equals(intent.getAction())
+				&& intent.getIntExtra(AgendaWatchfacePlugin.MAIN_SERVICE_INTENT_EXTRA_PLUGIN_VERSION, -1) == AgendaWatchfacePlugin.PLUGIN_PROTOCOL_VERSION) { // lets older lists of the plugin waiting in the queue be dropped (only by lists that will be applied)
+			String pluginId = intent.getStringExtra(AgendaWatchfacePlugin.MAIN_SERVICE_INTENT_EXTRA_PLUGIN_ID);
+			if (pluginId != null)
+				throttle.payloadQueued(pluginId, intent);
+		}
+
+		handler.post(new Runnable() { // the actual work happens on the sync thread
+			public void run() {
+				handleStartCommand(intent);
+			}
+		});
+
+		return START_STICKY; // we want the service to persist
+	}
+
+	/**
+	 * Handles an intent the service was started with (on the sync thread)
+	 *
+	 * @param intent
+	 *            the intent given to onStartCommand() (may be null)
+	 */
+	private void handleStartCommand(Intent intent) {
 		if (intent != null && INTENT_ACTION_HANDLE_WATCHAPP_MESSAGE.equals(intent.getAction())) { // handle the watch's request
 			Log.d("PebbleCommunication", "handling watch message");
 			try {
-				handleReceivedWatchDataInternal(PebbleDictionary.fromJson(intent.getStringExtra(com.getpebble.android.kit.Constants.MSG_DATA)));
+				engine.handleWatchMessage(PebbleDictionary.fromJson(intent.getStringExtra(com.getpebble.android.kit.Constants.MSG_DATA)));
 			} catch (JSONException e) {
 				Log.e("PebbleCommunication", "Error parsing json", e);
 			}
@@ -255,31 +475,66 @@ public class AgendaWatchfaceService extends Service {
 				Log.e("AgendaWatchfaceService", "Plugin " + intent.getStringExtra(AgendaWatchfacePlugin.MAIN_SERVICE_INTENT_EXTRA_PLUGIN_ID)
 						+ " seems outdated (or didn't supply version). Ignoring its data");
 			else {
+				String pluginId = intent.getStringExtra(AgendaWatchfacePlugin.MAIN_SERVICE_INTENT_EXTRA_PLUGIN_ID);
+				if (pluginId != null && throttle.isSuperseded(pluginId, intent)) { // a newer list is queued. Don't even read this one
+					Log.d("AgendaWatchfaceService", "Dropping superseded data from " + pluginId);
+					return;
+				}
 				Parcelable[] data = intent.getParcelableArrayExtra(AgendaWatchfacePlugin.MAIN_SERVICE_INTENT_EXTRA_DATA);
+				long fingerprint = intent.getLongExtra(PluginDataChannel.INTENT_EXTRA_DATA_FINGERPRINT, PluginDataChannel.NO_FINGERPRINT);
+				if (fingerprint == PluginDataChannel.NO_FINGERPRINT)
+					fingerprint = PluginDataChannel.fingerprint(data);
+				if (pluginId != null && fingerprint != PluginDataChannel.NO_FINGERPRINT && !throttle.hasPending(pluginId) && itemStore.hasFingerprint(pluginId, fingerprint)) { // same as last time. Don't even read it
+					handleUnchangedPluginData(pluginId);
+					return;
+				}
+
 				ArrayList<AgendaItem> items = new ArrayList<AgendaItem>();
 				try {
-					for (Parcelable item : data)
-						items.add(new AgendaItem((Bundle) item));
+					PluginDataChannel.parseItems(data, items);
 				} catch (RuntimeException e) {
 					Log.e("AgendaWatchfaceService", "Plugin supplied invalid data", e);
 				}
-				handleReceivedPluginData(items, intent.getStringExtra(AgendaWatchfacePlugin.MAIN_SERVICE_INTENT_EXTRA_PLUGIN_ID), intent.getBooleanExtra(AgendaWatchfacePlugin.MAIN_SERVICE_INTENT_EXTRA_VIBRATE, false));
+				handleReceivedPluginData(items, pluginId, intent.getBooleanExtra(AgendaWatchfacePlugin.MAIN_SERVICE_INTENT_EXTRA_VIBRATE, false), fingerprint);
+			}
+		} else if (intent != null && PluginDataChannel.INTENT_ACTION_UPDATE_DATA.equals(intent.getAction())) { // handle plugin changing single items
+			if (intent.getIntExtra(AgendaWatchfacePlugin.MAIN_SERVICE_INTENT_EXTRA_PLUGIN_VERSION, -1) != AgendaWatchfacePlugin.PLUGIN_PROTOCOL_VERSION)
+				Log.e("AgendaWatchfaceService", "Plugin " + intent.getStringExtra(AgendaWatchfacePlugin.MAIN_SERVICE_INTENT_EXTRA_PLUGIN_ID)
+						+ " seems outdated (or didn't supply version). Ignoring its update");
+			else {
+				try {
+					handleReceivedPluginUpdate(PluginDataChannel.parseUpdate(intent.getExtras()), intent.getStringExtra(AgendaWatchfacePlugin.MAIN_SERVICE_INTENT_EXTRA_PLUGIN_ID),
+							intent.getBooleanExtra(AgendaWatchfacePlugin.MAIN_SERVICE_INTENT_EXTRA_VIBRATE, false));
+				} catch (RuntimeException e) {
+					Log.e("AgendaWatchfaceService", "Plugin supplied invalid update", e);
+				}
 			}
 		} else if (intent != null && INTENT_ACTION_REFRESH_PLUGIN_DATA.equals(intent.getAction())) {
 			issueGatherPluginData();
 		} else if (intent != null && INTENT_ACTION_FORCE_WATCH_SYNC.equals(intent.getAction())) {
-			sendForceRequestMessage();
-		} else if (intent != null && state != STATE_INITIAL_POPULATING_PLUGIN_DATA) { // someone wants to simply start the service. Also start a sync
+			engine.sendForceRequestMessage();
+		} else if (intent != null && INTENT_ACTION_ITEMS_CHANGED.equals(intent.getAction())) {
+			engine.scheduleSync();
+			scheduleItemsChangedAlarm();
+		} else if (intent != null && INTENT_ACTION_SETTINGS_CHANGED.equals(intent.getAction())) {
+			engine.settingsChanged(); // no-op if settingsListener got there first
+		} else if (intent != null && !engine.isWaitingForPluginData()) { // someone wants to simply start the service. Also start a sync
 			Log.d("PebbleCommunication", "onStartService() started forced update");
-			resetPluginData();
-			startInitialPluginDataGetting();
-			sendForceRequestMessage();
+			if (itemStore.isEmpty()) // nothing to show yet. Wait for the plugins
+				startInitialPluginDataGetting();
+			else
+				issueGatherPluginData(); // keep what we have, changes follow as deltas. Plugins that don't answer are evicted once their data is stale
+			engine.sendForceRequestMessage();
 		}
-
-		return START_STICKY; // we want the service to persist
 	}
 
-	private void handleReceivedPluginData(List<AgendaItem> items, String pluginId, boolean vibrate) {
+	/**
+	 * Sets a plugin's items
+	 *
+	 * @param fingerprint
+	 *            fingerprint of the payload the items were read from (PluginDataChannel.NO_FINGERPRINT if none)
+	 */
+	private void handleReceivedPluginData(List<AgendaItem> items, String pluginId, boolean vibrate, long fingerprint) {
 		if (pluginId == null) {
 			Log.e("AgendaWatchfaceService", "No plugin id supplied");
 			return;
@@ -290,452 +545,296 @@ public class AgendaWatchfaceService extends Service {
 		}
 
 		Log.d("AgendaWatchfaceService", "Successfully received update from " + pluginId);
-
-		if (pluginData.containsKey(pluginId) && items.equals(pluginData.get(pluginId))) { // skip further action if no changes...
+		boolean allPluginsReported = pluginResponses.pluginReported(pluginId, SystemClock.elapsedRealtime());
+		if (!throttle.tryAcquire(pluginId, SystemClock.elapsedRealtime())) {
+			Log.w("AgendaWatchfaceService", "Plugin " + pluginId + " sends data too often. Deferring it");
+			itemStore.touch(pluginId, System.currentTimeMillis()); // the plugin is alive
+			throttle.deferItems(pluginId, items, fingerprint, vibrate);
+			schedulePendingPluginData();
+			pluginDataReceived(false, allPluginsReported, false);
 			return;
 		}
+		pluginDataReceived(applyPluginItems(pluginId, items, fingerprint), allPluginsReported, vibrate);
+	}
 
-		if (vibrate)
-			vibrate_on_next_done = true;
-		
-		pluginData.put(pluginId, items);
-		doWatchSyncOnChanges();
+	/**
+	 * Puts a plugin's items into the itemStore, within the plugin's limits
+	 *
+	 * @return true iff the items changed
+	 */
+	private boolean applyPluginItems(String pluginId, List<AgendaItem> items, long fingerprint) {
+		boolean changed = itemStore.put(pluginId, items, System.currentTimeMillis());
+		if (fingerprint != PluginDataChannel.NO_FINGERPRINT)
+			itemStore.setFingerprint(pluginId, fingerprint);
+		trimPluginItems(pluginId);
+		return changed;
 	}
 
 	/**
-	 * Pebble got our last message. Send next one according to current state
-	 * 
-	 * @param transactionId
+	 * Applies a plugin's change of single items to the itemStore, within the plugin's limits
+	 *
+	 * @return true iff the items changed
 	 */
-	private synchronized void ackReceived(int transactionId) {
-		if (transactionId != transactionFlying) {
-			Log.d("PebbleCommunication", "Received unexpected ack. Ignoring");
-			return;
-		}
-		Log.d("PebbleCommunication", "Received ack in state " + state);
-		switch (state) {
-		case STATE_RESTART_SYNC_ON_ACK: //TODO recheck if this state is needed
-			forceSync();
-			break;
-		case STATE_WAIT_FOR_WATCH_REQUEST: // we're not expecting an ack
-			break;
-		case STATE_NO_NEW_DATA_MSG_SENT:
-			state = STATE_WAIT_FOR_WATCH_REQUEST;
-			break;
-		case STATE_INIT_SENT: // message ack'd was the initial one. Start sending items
-			currentIndex = 0;
-			if (itemsToSend.size() == 0) { // nothing to do if no items to show
-				state = STATE_WAIT_FOR_WATCH_REQUEST;
-				break;
-			}
+	private boolean applyPluginUpdate(String pluginId, ItemUpdate update) {
+		boolean changed = itemStore.update(pluginId, update, System.currentTimeMillis());
+		trimPluginItems(pluginId);
+		return changed;
+	}
 
-			// Begin sending first item
-			if (canBeSentInOneMessage(itemsToSend.get(currentIndex))) {
-				sendItem(itemsToSend.get(currentIndex), currentIndex);
-				state = STATE_SENT_ITEM_WAIT_FOR_ACK;
-			} else {
-				sendFirstItemHalf(itemsToSend.get(currentIndex), currentIndex);
-				state = STATE_SENT_ITEM_1_WAIT_FOR_ACK;
-			}
-			break;
-
-		case STATE_SENT_ITEM_2_WAIT_FOR_ACK: // ack was for second item half. Send next item
-		case STATE_SENT_ITEM_WAIT_FOR_ACK: // ack was for item. Send next item
-			currentIndex++;
-			if (currentIndex < itemsToSend.size()) { // still things to send
-				if (canBeSentInOneMessage(itemsToSend.get(currentIndex))) {
-					sendItem(itemsToSend.get(currentIndex), currentIndex);
-					state = STATE_SENT_ITEM_WAIT_FOR_ACK;
-				} else {
-					sendFirstItemHalf(itemsToSend.get(currentIndex), currentIndex);
-					state = STATE_SENT_ITEM_1_WAIT_FOR_ACK;
-				}
-			} else {
-				sendDoneMessage();
-				state = STATE_SENT_DONE_MSG_WAIT_FOR_ACK;
-			}
-			break;
-		
-		case STATE_SENT_ITEM_1_WAIT_FOR_ACK: //ack was for first item half. Send next half
-			sendSecondItemHalf(itemsToSend.get(currentIndex), currentIndex);
-			state = STATE_SENT_ITEM_2_WAIT_FOR_ACK;
-			break;			
-
-		case STATE_SENT_DONE_MSG_WAIT_FOR_ACK: // ack was for done message. This concludes the sync process
-			state = STATE_WAIT_FOR_WATCH_REQUEST;
-			Log.d("PebbleCommunication", "Sync complete :)");
-			lastSync = System.currentTimeMillis();
-			lastSuccessfulSyncId = currentSyncId;
-			itemsSuccessfullySent = itemsToSend;
-			vibrate_on_next_done = false;
-
-			broadcastCurrentData();
-			break;
+	/**
+	 * Drops the plugin's items beyond PluginThrottle.MAX_ITEMS_PER_PLUGIN and MAX_BYTES_PER_PLUGIN
+	 */
+	private void trimPluginItems(String pluginId) {
+		int dropped = itemStore.trim(pluginId, PluginThrottle.MAX_ITEMS_PER_PLUGIN, PluginThrottle.MAX_BYTES_PER_PLUGIN);
+		if (dropped > 0) {
+			Log.w("AgendaWatchfaceService", "Plugin " + pluginId + " exceeds its limits. Dropped its last " + dropped + " items");
+			throttle.itemsDropped(pluginId, dropped);
 		}
 	}
 
 	/**
-	 * Handle the watch requesting new data. Checks watchapp version, issues update prompt or starts sending data
-	 * 
-	 * @param version
-	 *            version of the watchface
-	 * @param minVersion
-	 *            version the watchface expects of this app (bundled watchface version)
-	 * @param reportedSyncId
-	 *            id the watch reports that its synced data has
-	 */
-	private synchronized void watchRequestReceived(Long version, Long minVersion, byte reportedSyncId) {
-		Log.d("PebbleCommunication", "Received sync request in state " + state + " for version " + version + ", watch reports having data id " + reportedSyncId);
-		lastWatchReportedSyncId = reportedSyncId;
-		if (state == STATE_INITIAL_POPULATING_PLUGIN_DATA) { // ignore watch request for the time being
-			Log.d("AgendaWatchfaceService", "Ignoring watch request since we're waiting for initial plugin data");
-			return;
+	 * Schedules applying the data PluginThrottle deferred, for when the first of those plugins has a token again
+	 */
+	private void schedulePendingPluginData() {
+		long delay = -1;
+		long now = SystemClock.elapsedRealtime();
+		for (String pluginId : throttle.getPendingPlugins()) {
+			long time = throttle.getTimeUntilToken(pluginId, now);
+			if (delay == -1 || time < delay)
+				delay = time;
 		}
+		handler.removeCallbacks(pendingPluginDataTimer);
+		if (delay >= 0)
+			handler.postDelayed(pendingPluginDataTimer, delay);
+	}
 
-		if (currentSyncId == 0)
-			currentSyncId = reportedSyncId; // if we have no sync id remembered, just pretend we remember the one the watch reported
-
-		if (minVersion == null || minVersion > CURRENT_WATCHAPP_VERSION_BUNDLED) { // watchface expects newer Android app
-			triggerAndroidAppUpdateNotification();
-			state = STATE_WAIT_FOR_WATCH_REQUEST;
-		} else if (version == null || version < CURRENT_WATCHAPP_VERSION_MINIMUM) { // watchface very outdated
-			triggerUpdateNotification(true);
-			state = STATE_WAIT_FOR_WATCH_REQUEST;
-		} else {
-			// everything good. Give the watch its data :)
-			if (state == STATE_WAIT_FOR_WATCH_REQUEST) // expecting request or watch is very persistent in requesting the restart...
-				doWatchSyncOnChanges();
-			else {
-				Log.d("PebbleCommunication", "Restart request during sync. Restarting");
-				state = STATE_WAIT_FOR_WATCH_REQUEST; // restart the whole thing
-				doWatchSyncOnChanges();
-			}
-			
-			//If the user wants to, also notify on new bundled version (even though the update did not break functionality)
-			if (version != null && version < CURRENT_WATCHAPP_VERSION_BUNDLED && PreferenceManager.getDefaultSharedPreferences(getApplicationContext()).getBoolean("pref_notify_on_update", true))
-				triggerUpdateNotification(false);
+	/**
+	 * Applies the deferred data of plugins that have a token again
+	 */
+	private Runnable pendingPluginDataTimer = new Runnable() {
+		public void run() {
+			applyPendingPluginData();
 		}
+	};
 
-		// Notify the activity if it's listening
-		watchfaceVersion = version == null ? -1 : version.intValue();
-		broadcastCurrentData();
+	private void applyPendingPluginData() {
+		long now = SystemClock.elapsedRealtime();
+		boolean changed = false;
+		boolean vibrate = false;
+		for (String pluginId : throttle.getPendingPlugins()) {
+			if (throttle.getTimeUntilToken(pluginId, now) > 0)
+				continue;
+			PluginThrottle.Pending data = throttle.takePending(pluginId, now);
+			if (data.items != null)
+				changed |= applyPluginItems(pluginId, data.items, data.fingerprint);
+			if (data.update != null)
+				changed |= applyPluginUpdate(pluginId, data.update);
+			vibrate |= data.vibrate;
+		}
+		pluginDataReceived(changed, false, vibrate);
+		schedulePendingPluginData();
 	}
 
 	/**
-	 * Handle nacks: resend if necessary
-	 * 
-	 * @param transactionId
+	 * Handles a plugin's payload that was dropped for being the same as the last one
 	 */
-	private void nackReceived(int transactionId) {
-		if (transactionId == transactionFlying) {
-			Log.d("PebbleCommunication", "Received Nack in state " + state + " resend counter: " + numRetries);
-			final PebbleDictionary dictToResend = lastSentDict;
-			
-			handler.postDelayed(new Runnable() {
-				public void run() {
-					if (dictToResend == lastSentDict && !sendMessage(dictToResend, true)) {
-						Log.d("PebbleCommunication", "Retries exhausted. Resetting state to begin again");
-						state = STATE_WAIT_FOR_WATCH_REQUEST;
-					}
-				}
-			}, 3000);
-		} else {
-			Log.d("PebbleCommunication", "Received Nack for \"foreign\" transaction");
-		}
+	private void handleUnchangedPluginData(String pluginId) {
+		Log.d("AgendaWatchfaceService", "Received unchanged data from " + pluginId);
+		itemStore.touch(pluginId, System.currentTimeMillis());
+		pluginDataReceived(false, pluginResponses.pluginReported(pluginId, SystemClock.elapsedRealtime()), false);
 	}
 
 	/**
-	 * Add user settings to a PebbleDictionary
-	 * 
-	 * @param dict
+	 * Applies a plugin's change of single items
 	 */
-	private void addPebbleSettings(PebbleDictionary dict) {
-		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
-
-		// General settings
-		int flags = 0;
-		flags |= prefs.getBoolean("pref_show_header", true) ? 0x01 : 0; // constants are documented in the watchapp
-		flags |= prefs.getBoolean("pref_12h", false) ? 0x02 : 0;
-		flags |= prefs.getBoolean("pref_ampm", true) ? 0x04 : 0;
-		flags |= Integer.parseInt(prefs.getString("pref_layout_font_size", "0")) % 2 == 1 ? 0x20 : 0;
-		flags |= Integer.parseInt(prefs.getString("pref_layout_font_size", "0")) > 1 ? 0x40 : 0;
-		flags |= Integer.parseInt(prefs.getString("pref_header_time_size", "1")) % 2 == 1 ? 0x80 : 0;
-		flags |= Integer.parseInt(prefs.getString("pref_header_time_size", "1")) > 1 ? 0x100 : 0;
-		flags |= prefs.getBoolean("pref_separator_date", false) ? 0x200 : 0;
-		flags |= prefs.getBoolean("pref_enable_scroll", true) ? 0x400 : 0;
-		flags |= prefs.getBoolean("pref_layout_countdown", false) ? 0x800 : 0;
-		flags |= prefs.getBoolean("pref_continuous_scroll", false) ? 0x1000 : 0;
-		flags |= prefs.getBoolean("pref_light_while_scrolling", false) ? 0x2000 : 0;
-		flags |= prefs.getBoolean("pref_limit_persist", true) ? 0x4000 : 0;
-		flags |= prefs.getBoolean("pref_invert_watchface", false) ? 0x8000 : 0;
+	private void handleReceivedPluginUpdate(ItemUpdate update, String pluginId, boolean vibrate) {
+		if (pluginId == null) {
+			Log.e("AgendaWatchfaceService", "No plugin id supplied");
+			return;
+		}
 
-		dict.addUint32(PEBBLE_KEY_SETTINGS_BOOLFLAGS, flags);
+		Log.d("AgendaWatchfaceService", "Received incremental update from " + pluginId);
+		boolean allPluginsReported = pluginResponses.pluginReported(pluginId, SystemClock.elapsedRealtime());
+		if (!throttle.tryAcquire(pluginId, SystemClock.elapsedRealtime())) {
+			Log.w("AgendaWatchfaceService", "Plugin " + pluginId + " sends updates too often. Deferring them");
+			itemStore.touch(pluginId, System.currentTimeMillis()); // the plugin is alive
+			throttle.deferUpdate(pluginId, update, vibrate);
+			schedulePendingPluginData();
+			pluginDataReceived(false, allPluginsReported, false);
+			return;
+		}
+		pluginDataReceived(applyPluginUpdate(pluginId, update), allPluginsReported, vibrate);
 	}
 
 	/**
-	 * Asks all plugins for content updates. Updates will arrive asynchronously some time later
+	 * Removes the data of plugins whose package was uninstalled. Plugin ids are package names by convention, optionally with a suffix (e.g.,
+	 * "de.janbo.agendawatchface.calendar"). Plugins with other ids are evicted once their data is stale
 	 */
-	private void issueGatherPluginData() {
-		// Send the broadcast to notify everyone
-		Intent intent = new Intent(AgendaWatchfacePlugin.INTENT_ACTION_AGENDA_PROVIDER);
-		intent.addFlags(Intent.FLAG_INCLUDE_STOPPED_PACKAGES);
-		intent.putExtra(AgendaWatchfacePlugin.INTENT_EXTRA_PROTOCOL_VERSION, AgendaWatchfacePlugin.PLUGIN_PROTOCOL_VERSION);
-		intent.putExtra(AgendaWatchfacePlugin.INTENT_EXTRA_REQUEST_TYPE, AgendaWatchfacePlugin.REQUEST_TYPE_REFRESH);
-		sendBroadcast(intent);
+	private void handlePackageRemoved(String packageName) {
+		List<String> removed = new ArrayList<String>();
+		boolean allPluginsReported = false;
+		for (String pluginId : itemStore.getPluginIds()) {
+			if (pluginId.equals(packageName) || (pluginId.startsWith(packageName + ".") && !isOwnedByInstalledPackage(pluginId, packageName))) {
+				Log.d("AgendaWatchfaceService", "Package " + packageName + " was removed. Dropping data of plugin " + pluginId);
+				itemStore.remove(pluginId);
+				allPluginsReported = pluginResponses.forget(pluginId);
+				removed.add(pluginId);
+			}
+		}
+		pluginDataRemoved(removed, allPluginsReported);
 	}
 
 	/**
-	 * Simply removes all plugin data we know
+	 * Returns true iff an installed package with a longer name than removedPackage may own the plugin id (e.g., "com.foo.bar" owns "com.foo.bar.plugin" after
+	 * "com.foo" was removed)
 	 */
-	private void resetPluginData() {
-		pluginData.clear();
+	private boolean isOwnedByInstalledPackage(String pluginId, String removedPackage) {
+		PackageManager packageManager = getPackageManager();
+		for (int end = pluginId.indexOf('.', removedPackage.length() + 1); ; end = pluginId.indexOf('.', end + 1)) {
+			String candidate = end < 0 ? pluginId : pluginId.substring(0, end);
+			try {
+				packageManager.getApplicationInfo(candidate, 0);
+				return true;
+			} catch (PackageManager.NameNotFoundException e) { // not installed, try the next longer name
+			}
+			if (end < 0)
+				return false;
+		}
 	}
 
 	/**
-	 * Kicks of a forced sync (giving the watch a complete dataset)
+	 * Evicts the data of plugins that haven't reported within pref_plugin_data_ttl (e.g., because they crashed or were disabled)
 	 */
-	private synchronized void forceSync() {
-		beginWatchSync((byte) 0);
+	private Runnable staleDataTimer = new Runnable() {
+		public void run() {
+			evictStalePluginData();
+		}
+	};
+
+	private void evictStalePluginData() {
+		long ttl;
+		try {
+			ttl = Long.parseLong(getStringSetting("pref_plugin_data_ttl", DEFAULT_PLUGIN_DATA_TTL)) * 60 * 60 * 1000;
+		} catch (NumberFormatException e) {
+			ttl = Long.parseLong(DEFAULT_PLUGIN_DATA_TTL) * 60 * 60 * 1000;
+		}
+		if (ttl <= 0) // keep forever
+			return;
+
+		List<String> removed = itemStore.removeStale(System.currentTimeMillis(), ttl);
+		for (String pluginId : removed)
+			Log.d("AgendaWatchfaceService", "Plugin " + pluginId + " didn't report for too long. Dropping its data");
+		pluginDataRemoved(removed, false);
 	}
 
 	/**
-	 * Checks if there are any changes in the current data and kicks of a sync iff this is the case
+	 * Forgets what the throttle knows about the removed plugins and syncs the watch
 	 */
-	private synchronized void doWatchSyncOnChanges() {
-		beginWatchSync(lastWatchReportedSyncId);
+	private void pluginDataRemoved(List<String> pluginIds, boolean allPluginsReported) {
+		for (String pluginId : pluginIds)
+			throttle.remove(pluginId);
+		pluginDataReceived(!pluginIds.isEmpty(), allPluginsReported, false);
 	}
 
 	/**
-	 * Kicks off sync process by checking whether we have new data, and sending init message or noNewData message
-	 * 
-	 * @param reportedSyncId
-	 *            id that the watch reported that it has (or 0 to force sync).
+	 * Prepares and schedules a sync after plugin data arrived. Ends the initial plugin data gathering once all plugins reported
+	 *
+	 * @param changed
+	 *            whether the data changed the item store
 	 */
-	private synchronized void beginWatchSync(byte reportedSyncId) {
-		if (state == STATE_INITIAL_POPULATING_PLUGIN_DATA) {
-			Log.d("AgendaWatchfaceService", "Almost wanted to start a sync, but we're still in the \"getting plugin data\" phase");
+	private void pluginDataReceived(boolean changed, boolean allPluginsReported, boolean vibrate) {
+		if (!changed) { // skip further action if no changes...
+			if (allPluginsReported)
+				endInitialPluginDataGetting();
 			return;
 		}
 
-		if (state != STATE_WAIT_FOR_WATCH_REQUEST) {
-			Log.d("PebbleCommunication", "Restarting sending of items");
-		}
-		
-		int max_num_items_to_send = Integer.parseInt(PreferenceManager.getDefaultSharedPreferences(this).getString("pref_send_num_items", "10"));
-
-		Calendar cal = Calendar.getInstance();
-		long now = cal.getTimeInMillis();
-
-		// Calculate what to send
-		itemsToSend = new ArrayList<AgendaItem>();
-		for (List<AgendaItem> pluginItems : pluginData.values())
-			// populate list with all plugin items
-			for (AgendaItem item : pluginItems)
-				if (item != null && item.endTime == null || item.endTime.getTime() > now)
-					itemsToSend.add(item);
-
-		Collections.sort(itemsToSend); // Sort
-		if (itemsToSend.size() > max_num_items_to_send) // Trim
-			itemsToSend.subList(max_num_items_to_send, itemsToSend.size()).clear();
-
-		currentIndex = -1;
-
-		// Check if we should report this data having been sent before
-		boolean newData = true;
-		if (itemsSuccessfullySent != null && lastSuccessfulSyncId != 0 && reportedSyncId == lastSuccessfulSyncId) { // if so, Compare the version we're about to send to the last successful one
-			newData = !itemsSuccessfullySent.equals(itemsToSend);
-		}
+		if (vibrate)
+			engine.requestVibration();
 
-		if (newData) {
-			currentSyncId++;
-			currentSyncId = currentSyncId <= 0 ? (byte) 1 : currentSyncId;
-			sendInitDataMsg(itemsToSend.size(), currentSyncId);
-			state = STATE_INIT_SENT;
-		} else {
-			sendNoNewDataMsg();
-			state = STATE_NO_NEW_DATA_MSG_SENT;
-		}
+		engine.prepareItems(getItemsToSend(System.currentTimeMillis())); // encode new items now, the sync only looks them up
+		scheduleItemsChangedAlarm();
+		if (allPluginsReported && engine.isWaitingForPluginData())
+			endInitialPluginDataGetting(); // the sync this starts includes the new data
+		else
+			engine.scheduleSync();
 	}
 
 	/**
-	 * Inform the watch that its dataset is up-to-date
+	 * Merges the plugins' items into the list to send: sorted, without items that are over, trimmed to pref_send_num_items
 	 */
-	private void sendNoNewDataMsg() {
-		Log.d("PebbleCommunication", "Informing watch that its dataset is up-to-date");
-		PebbleDictionary data = new PebbleDictionary();
-		data.addUint8(PEBBLE_KEY_COMMAND, PEBBLE_COMMAND_NO_NEW_DATA);
-		sendMessage(data, false);
+	public List<AgendaItem> getItemsToSend(long now) {
+		return itemStore.getItemsToSend(now, engine.getSettings().getNumItemsToSend());
 	}
 
 	/**
-	 * Sends init message.
-	 * 
-	 * @param numberOfItems
-	 * @param syncId
-	 *            Id of this sync process to report to the watch
+	 * Sets an exact alarm for the next time the items to send change by themselves (the first of them is over), so that the watch doesn't show it longer than
+	 * necessary. Cancels the alarm if there is no such time
 	 */
-	private void sendInitDataMsg(int numberOfItems, byte syncId) {
-		Log.d("PebbleCommunication", "sending init message, advertising " + numberOfItems + " items and syncId " + syncId);
-		PebbleDictionary data = new PebbleDictionary();
-		data.addUint8(PEBBLE_KEY_COMMAND, PEBBLE_COMMAND_INIT_DATA); // command
-		data.addUint8(PEBBLE_KEY_NUM_ITEMS, (byte) numberOfItems); // number of items we will send
-		data.addUint8(PEBBLE_KEY_SYNC_ID, syncId); // id of the data we're about to send (to compare against existing data)
-		data.addUint8(PEBBLE_KEY_VERSION, CURRENT_WATCHAPP_VERSION_MINIMUM); // expected minimum watchapp version
-		addPebbleSettings(data); // general and design settings
-		sendMessage(data, false);
+	private void scheduleItemsChangedAlarm() {
+		long nextChange = itemStore.getNextChange(System.currentTimeMillis(), engine.getSettings().getNumItemsToSend());
+		AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+		Intent intent = new Intent(this, AgendaWatchfaceService.class);
+		intent.setAction(INTENT_ACTION_ITEMS_CHANGED);
+		PendingIntent pendingIntent = PendingIntent.getService(this, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+		if (nextChange < 0)
+			alarmManager.cancel(pendingIntent);
+		else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) // set() is inexact from KitKat on
+			alarmManager.setExact(AlarmManager.RTC_WAKEUP, nextChange, pendingIntent);
+		else
+			alarmManager.set(AlarmManager.RTC_WAKEUP, nextChange, pendingIntent);
 	}
 
-	/**
-	 * Returns true iff the item is small enough to safely send it in one message
-	 * @param e the event to send
-	 */
-	private boolean canBeSentInOneMessage(AgendaItem e) {
-		String line1 = e.line1 == null ? "" : stringToSendableString(e.line1.text);
-		String line2 = e.line2 == null ? "" : stringToSendableString(e.line2.text);
-		
-		return line1.getBytes().length+line2.getBytes().length < 40;
+	public String getStringSetting(String key, String defaultValue) {
+		return PreferenceManager.getDefaultSharedPreferences(getApplicationContext()).getString(key, defaultValue);
 	}
-	
-	/**
-	 * Sends a message with the item
-	 * 
-	 * @param e the item to send
-	 * @param index the index in this sync
-	 */
-	private void sendItem(AgendaItem e, int index) {
-		PebbleDictionary data = new PebbleDictionary();
-		data.addUint8(PEBBLE_KEY_COMMAND, PEBBLE_COMMAND_ITEM); // command
-		data.addUint8(PEBBLE_KEY_ITEM_INDEX, (byte) index);
-		data.addString(PEBBLE_KEY_ITEM_TEXT1, e.line1 == null ? "" : stringToSendableString(e.line1.text));
-		data.addString(PEBBLE_KEY_ITEM_TEXT2, e.line2 == null ? "" : stringToSendableString(e.line2.text));
-		data.addUint8(PEBBLE_KEY_ITEM_DESIGN1, e.line1 == null ? 0 : getPebbleDesign(e.line1, 1));
-		data.addUint8(PEBBLE_KEY_ITEM_DESIGN2, e.line2 == null ? 0 : getPebbleDesign(e.line2, 2));
-		data.addInt32(PEBBLE_KEY_ITEM_START_TIME, e.getStartTimeInPebbleFormat());
-		data.addInt32(PEBBLE_KEY_ITEM_END_TIME, e.getEndTimeInPebbleFormat());
-		sendMessage(data, false);
-	}
-	
-	/**
-	 * Sends a message with the first half of an item
-	 * @param e the item to send
-	 * @param index the index in this sync
-	 */
-	private void sendFirstItemHalf(AgendaItem e, int index) {
-		PebbleDictionary data = new PebbleDictionary();
-		data.addUint8(PEBBLE_KEY_COMMAND, PEBBLE_COMMAND_ITEM_1); // command
-		data.addUint8(PEBBLE_KEY_ITEM_INDEX, (byte) index);
-		data.addString(PEBBLE_KEY_ITEM_TEXT1, e.line1 == null ? "" : stringToSendableString(e.line1.text));
-		data.addUint8(PEBBLE_KEY_ITEM_DESIGN1, e.line1 == null ? 0 : getPebbleDesign(e.line1, 1));
-		data.addInt32(PEBBLE_KEY_ITEM_START_TIME, e.getStartTimeInPebbleFormat());
-		sendMessage(data, false);
-	}
-	
-	/**
-	 * Sends a message with the first half of an item
-	 * @param e the item to send
-	 * @param index the index in this sync
-	 */
-	private void sendSecondItemHalf(AgendaItem e, int index) {
-		PebbleDictionary data = new PebbleDictionary();
-		data.addUint8(PEBBLE_KEY_COMMAND, PEBBLE_COMMAND_ITEM_2); // command
-		data.addUint8(PEBBLE_KEY_ITEM_INDEX, (byte) index);
-		data.addString(PEBBLE_KEY_ITEM_TEXT2, e.line2 == null ? "" : stringToSendableString(e.line2.text));
-		data.addUint8(PEBBLE_KEY_ITEM_DESIGN2, e.line2 == null ? 0 : getPebbleDesign(e.line2, 2));
-		data.addInt32(PEBBLE_KEY_ITEM_END_TIME, e.getEndTimeInPebbleFormat());
-		sendMessage(data, false);
-	}
-	
-	/**
-	 * Trims the supplied string to conform to MAX_STRING_LEN_TO_SEND (cutting it to at most that many bytes)
-	 */
-	private String stringToSendableString(String str) {
-		if (str == null)
-			return "(null)";
-		
-		if (str.getBytes().length > MAX_STRING_LEN_TO_SEND) { //trim string
-			int firstTrimmedByteIndex = MAX_STRING_LEN_TO_SEND-"...".getBytes().length; //index of the first byte that will not appear in the final string
-			while (firstTrimmedByteIndex >= 0 && (str.getBytes()[firstTrimmedByteIndex] & 0xC0) == 0x80) //some unicode magic, making sure not to split multi-byte chars (http://docs.oracle.com/javase/1.5.0/docs/api/java/io/DataInput.html#modified-utf-8)
-				firstTrimmedByteIndex--;
-			return new String(str.getBytes(),0,firstTrimmedByteIndex)+"...";
-		}
-		return str;
+
+	public boolean getBooleanSetting(String key, boolean defaultValue) {
+		return PreferenceManager.getDefaultSharedPreferences(getApplicationContext()).getBoolean(key, defaultValue);
 	}
 
-	/**
-	 * Computes the design for the pebble
-	 * 
-	 * @param line
-	 * @param linenum
-	 * @return
-	 */
-	private byte getPebbleDesign(AgendaItem.Line line, int linenum) {
-		byte result = 1; // [sic!] to distinguish between hiding the line and simply all-zero settings
-		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
-
-		//Bold
-		if (line.textBold)
-			result |= 0x20;
-		
-		//Overflow
-		result |= line.overflow.ordinal()*0x40;
-
-		//TimeDisplayType
-		TimeDisplayType time_type = line.timeDisplay;
-		if (time_type == null)
-			time_type = TimeDisplayType.values()[Integer.parseInt(prefs.getString("pref_layout_time_" + linenum, linenum == 1 ? "0" : "4"))];
-		result |= time_type.ordinal() * 0x02;
-
-		if (time_type != TimeDisplayType.NONE) {
-			boolean showCountdown = false;
-			if (line.timeShowCountdown != null)
-				showCountdown = line.timeShowCountdown;
-			else
-				showCountdown = prefs.getBoolean("pref_layout_countdown", false);
-			if (showCountdown)
-				result |= 0x10;
-		}
+	public void log(String tag, String message) {
+		Log.d(tag, message);
+	}
 
-		return result;
+	public void onSyncCompleted() {
+		saveSyncState();
+		scheduleItemsChangedAlarm();
 	}
 
-	/**
-	 * Send message that we're done with the sync
-	 */
-	private void sendDoneMessage() {
-		PebbleDictionary data2 = new PebbleDictionary();
-		data2.addUint8(PEBBLE_KEY_COMMAND, PEBBLE_COMMAND_DONE);
-		data2.addUint8(PEBBLE_KEY_VIBRATE, vibrate_on_next_done ? Byte.valueOf(PreferenceManager.getDefaultSharedPreferences(this).getString("pref_vibrate_type", "1")) : PEBBLE_VIBRATE_NONE);
-		sendMessage(data2, false);
+	public void onSyncFailed() {
+		saveSyncTrace();
 	}
 
-	/**
-	 * Send message that we want the watch to request an update (e.g., to get to know its version)
-	 */
-	private void sendForceRequestMessage() {
-		PebbleDictionary data2 = new PebbleDictionary();
-		data2.addUint8(PEBBLE_KEY_COMMAND, PEBBLE_COMMAND_FORCE_REQUEST);
-		sendMessage(data2, false);
+	public void onWatchInfoChanged() {
+		broadcastCurrentData();
+	}
+
+	public void onWatchappOutdated(boolean mandatoryUpgrade) {
+		triggerUpdateNotification(mandatoryUpgrade);
+	}
+
+	public void onAndroidAppOutdated() {
+		triggerAndroidAppUpdateNotification();
 	}
 
 	/**
-	 * Sends data to the watch. Only resends once
-	 * 
-	 * @param resend
-	 *            whether or not this message has been sent already at some point
-	 * @return true iff message was sent. false if retries have been exhausted.
-	 */
-	private synchronized boolean sendMessage(PebbleDictionary data, boolean resend) {
-		transactionFlying = (transactionFlying + 1) % 256; // new transaction
-		if ((numRetries = resend ? numRetries + 1 : 0) > 2) {
-			Log.d("PebbleCommunication", "Stopped retrying message sending in state " + state);
-			return false;
-		}
-		if (resend)
-			Log.d("PebbleCommunication", "Resending message. This is retry number "+(numRetries));
-		
-		lastSentDict = data;
-		PebbleKit.sendDataToPebbleWithTransactionId(getApplicationContext(), PEBBLE_APP_UUID, data, transactionFlying);
-		return true;
+	 * Asks all plugins for content updates. Updates will arrive asynchronously some time later
+	 */
+	private void issueGatherPluginData() {
+		pluginResponses.requestIssued(SystemClock.elapsedRealtime());
+
+		// Send the broadcast to notify everyone
+		Intent intent = new Intent(AgendaWatchfacePlugin.INTENT_ACTION_AGENDA_PROVIDER);
+		intent.addFlags(Intent.FLAG_INCLUDE_STOPPED_PACKAGES);
+		intent.putExtra(AgendaWatchfacePlugin.INTENT_EXTRA_PROTOCOL_VERSION, AgendaWatchfacePlugin.PLUGIN_PROTOCOL_VERSION);
+		intent.putExtra(AgendaWatchfacePlugin.INTENT_EXTRA_REQUEST_TYPE, AgendaWatchfacePlugin.REQUEST_TYPE_REFRESH);
+		intent.putExtra(PluginDataChannel.INTENT_EXTRA_DATA_CHANNEL_VERSION, PluginDataChannel.DATA_CHANNEL_VERSION); // plugins may upload through the channel instead
+		sendBroadcast(intent);
+
+		// Plugins that are alive have answered by then
+		handler.removeCallbacks(staleDataTimer);
+		handler.postDelayed(staleDataTimer, MAX_WAIT_TIME_FOR_PLUGIN_REPORTS);
 	}
 
 	/**
@@ -791,11 +890,47 @@ public class AgendaWatchfaceService extends Service {
 	private void broadcastCurrentData() {
 		Intent intent = new Intent();
 		intent.setAction(INTENT_ACTION_WATCHAPP_GIVE_INFO);
-		intent.putExtra(INTENT_EXTRA_WATCHAPP_VERSION, watchfaceVersion);
-		intent.putExtra(INTENT_EXTRA_WATCHAPP_LAST_SYNC, lastSync);
+		intent.putExtra(INTENT_EXTRA_WATCHAPP_VERSION, engine.getWatchfaceVersion());
+		intent.putExtra(INTENT_EXTRA_WATCHAPP_LAST_SYNC, engine.getLastSync());
+		intent.putExtra(INTENT_EXTRA_SYNC_STATS, getSyncStats());
 		sendBroadcast(intent);
 	}
 
+	/**
+	 * Collects the engine's statistics for INTENT_EXTRA_SYNC_STATS
+	 */
+	private Bundle getSyncStats() {
+		SyncStats stats = engine.getStats();
+		Bundle result = new Bundle();
+		int[] syncs = new int[SyncStats.NUM_SYNC_TYPES];
+		for (int type = 0; type < syncs.length; type++)
+			syncs[type] = stats.getSyncsCompleted(type);
+		result.putIntArray(SYNC_STATS_SYNCS_COMPLETED, syncs);
+		result.putInt(SYNC_STATS_SYNCS_ABORTED, stats.getSyncsAborted());
+		result.putLong(SYNC_STATS_MESSAGES_SENT, stats.getMessagesSent());
+		result.putLong(SYNC_STATS_BYTES_SENT, stats.getBytesSent());
+		result.putInt(SYNC_STATS_NACKS, stats.getNacks());
+		result.putInt(SYNC_STATS_RETRIES, stats.getRetries());
+		result.putInt(SYNC_STATS_ACK_TIMEOUTS, stats.getAckTimeouts());
+		result.putInt(SYNC_STATS_RETRY_EXHAUSTIONS, stats.getRetryExhaustions());
+		result.putLongArray(SYNC_STATS_LATENCY, summarize(stats.getLatency()));
+		result.putIntArray(SYNC_STATS_LATENCY_HISTOGRAM, stats.getLatency().getBucketCounts());
+		result.putLongArray(SYNC_STATS_LATENCY_BOUNDS, stats.getLatency().getBounds());
+		result.putLongArray(SYNC_STATS_MESSAGES_PER_SYNC, summarize(stats.getMessagesPerSync()));
+		result.putLongArray(SYNC_STATS_BYTES_PER_SYNC, summarize(stats.getBytesPerSync()));
+		result.putLong(SYNC_STATS_RTT, engine.getSmoothedRtt());
+		result.putInt(SYNC_STATS_CACHE_HITS, engine.getEncodedItemCache().getHits());
+		result.putInt(SYNC_STATS_CACHE_MISSES, engine.getEncodedItemCache().getMisses());
+		return result;
+	}
+
+	/**
+	 * Gives median, 90th percentile and maximum of the histogram's values
+	 */
+	private static long[] summarize(RollingHistogram histogram) {
+		return new long[] { histogram.getPercentile(0.5), histogram.getPercentile(0.9), histogram.getMax() };
+	}
+
 	/**
 	 * Starts the watchapp on the watch
 	 * 
@@ -18,6 +18,8 @@ import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.Button;
 import android.widget.TextView;
+import de.janbo.agendawatchface.sync.SyncEngine;
+import de.janbo.agendawatchface.sync.SyncStats;
 
 public class MainActivity extends Activity {
 	private BroadcastReceiver serviceInfoReceiver = new BroadcastReceiver() {
@@ -33,20 +35,23 @@ public class MainActivity extends Activity {
 				
 				//Set text views
 				versionView.setText("Installed watchapp: "+(version == -1 ? "?" : 
-					version >= AgendaWatchfaceService.CURRENT_WATCHAPP_VERSION_BUNDLED ? "up-to-date" : "outdated"));
+					version >= SyncEngine.CURRENT_WATCHAPP_VERSION_BUNDLED ? "up-to-date" : "outdated"));
 				lastSyncView.setText("Last sync: "+(lastSync == -1 ? "?" : DateUtils.getRelativeTimeSpanString(MainActivity.this, lastSync)));
+				Bundle stats = intent.getBundleExtra(AgendaWatchfaceService.INTENT_EXTRA_SYNC_STATS);
+				if (stats != null)
+					((TextView) findViewById(R.id.syncStatsView)).setText(formatSyncStats(stats));
 				
 				//Set button
 				installButton.setText(version == -1 && lastSync == -1 ? "Install watchapp" : //no indication that it's installed
 					version == -1 ? "(Re-)install watchapp" : //last sync != -1 => it's installed, but version unknown
-					version > AgendaWatchfaceService.CURRENT_WATCHAPP_VERSION_BUNDLED ? "Update android app" :
-					version < AgendaWatchfaceService.CURRENT_WATCHAPP_VERSION_BUNDLED ? "Update watchapp" :
+					version > SyncEngine.CURRENT_WATCHAPP_VERSION_BUNDLED ? "Update android app" :
+					version < SyncEngine.CURRENT_WATCHAPP_VERSION_BUNDLED ? "Update watchapp" :
 					"Reinstall watchapp"); //in this case version == CURRENT_BUNDLED
-				installButton.setVisibility(version == AgendaWatchfaceService.CURRENT_WATCHAPP_VERSION_BUNDLED ? View.GONE : View.VISIBLE);
+				installButton.setVisibility(version == SyncEngine.CURRENT_WATCHAPP_VERSION_BUNDLED ? View.GONE : View.VISIBLE);
 				installButton.setOnClickListener(new OnClickListener() {
 					@Override
 					public void onClick(View v) {
-						if (version == -1 || version <= AgendaWatchfaceService.CURRENT_WATCHAPP_VERSION_BUNDLED) { //send app to watch
+						if (version == -1 || version <= SyncEngine.CURRENT_WATCHAPP_VERSION_BUNDLED) { //send app to watch
 							installWatchface();
 						}
 						else { //offer updating this app
@@ -100,10 +105,47 @@ public class MainActivity extends Activity {
 		return true;
 	}
 	
+	/**
+	 * Formats the service's sync statistics (AgendaWatchfaceService.INTENT_EXTRA_SYNC_STATS) for the stats panel
+	 */
+	private static String formatSyncStats(Bundle stats) {
+		int[] syncs = stats.getIntArray(AgendaWatchfaceService.SYNC_STATS_SYNCS_COMPLETED);
+		long[] latency = stats.getLongArray(AgendaWatchfaceService.SYNC_STATS_LATENCY);
+		long[] messages = stats.getLongArray(AgendaWatchfaceService.SYNC_STATS_MESSAGES_PER_SYNC);
+		long[] bytes = stats.getLongArray(AgendaWatchfaceService.SYNC_STATS_BYTES_PER_SYNC);
+		int[] histogram = stats.getIntArray(AgendaWatchfaceService.SYNC_STATS_LATENCY_HISTOGRAM);
+		long[] bounds = stats.getLongArray(AgendaWatchfaceService.SYNC_STATS_LATENCY_BOUNDS);
+		if (syncs == null || latency == null || messages == null || bytes == null || histogram == null || bounds == null)
+			return "";
+
+		StringBuilder result = new StringBuilder();
+		result.append("Syncs: ").append(syncs[SyncStats.SYNC_FULL]).append(" full, ").append(syncs[SyncStats.SYNC_DELTA]).append(" delta, ")
+				.append(syncs[SyncStats.SYNC_SETTINGS]).append(" settings only, ").append(syncs[SyncStats.SYNC_NO_NEW_DATA]).append(" up-to-date, ")
+				.append(stats.getInt(AgendaWatchfaceService.SYNC_STATS_SYNCS_ABORTED)).append(" aborted");
+		if (latency[0] != -1) {
+			result.append("\nLatency: median ").append(latency[0]).append(" ms, 90% ").append(latency[1]).append(" ms, max ").append(latency[2]).append(" ms");
+			result.append("\n ");
+			for (int i = 0; i < histogram.length; i++)
+				result.append(i < bounds.length ? " <" + bounds[i] : " more").append(": ").append(histogram[i]);
+			result.append("\nPer sync: median ").append(messages[0]).append(" messages/").append(bytes[0]).append(" bytes, 90% ").append(messages[1]).append("/")
+					.append(bytes[1]).append(", max ").append(messages[2]).append("/").append(bytes[2]);
+		}
+		result.append("\nSent: ").append(stats.getLong(AgendaWatchfaceService.SYNC_STATS_MESSAGES_SENT)).append(" messages, ")
+				.append(stats.getLong(AgendaWatchfaceService.SYNC_STATS_BYTES_SENT)).append(" bytes");
+		result.append("\nNacks: ").append(stats.getInt(AgendaWatchfaceService.SYNC_STATS_NACKS)).append(", retries: ")
+				.append(stats.getInt(AgendaWatchfaceService.SYNC_STATS_RETRIES)).append(", timeouts: ").append(stats.getInt(AgendaWatchfaceService.SYNC_STATS_ACK_TIMEOUTS))
+				.append(", stalls: ").append(stats.getInt(AgendaWatchfaceService.SYNC_STATS_RETRY_EXHAUSTIONS));
+		long rtt = stats.getLong(AgendaWatchfaceService.SYNC_STATS_RTT);
+		result.append("\nRound trip: ").append(rtt == -1 ? "?" : rtt + " ms").append(", encoding cache: ")
+				.append(stats.getInt(AgendaWatchfaceService.SYNC_STATS_CACHE_HITS)).append(" hits/").append(stats.getInt(AgendaWatchfaceService.SYNC_STATS_CACHE_MISSES))
+				.append(" misses");
+		return result.toString();
+	}
+
 	private void installWatchface() {
 		final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
 		
-		if (prefs.getInt("tried_install_version", 0) == AgendaWatchfaceService.CURRENT_WATCHAPP_VERSION_BUNDLED) {
+		if (prefs.getInt("tried_install_version", 0) == SyncEngine.CURRENT_WATCHAPP_VERSION_BUNDLED) {
 			AlertDialog.Builder builder = new AlertDialog.Builder(this);
 			
 			builder.setMessage("If installation fails, please install the latest Pebble firmware!")
@@ -118,7 +160,7 @@ public class MainActivity extends Activity {
 			AlertDialog dialog = builder.create();
 			dialog.show();
 		} else {
-			prefs.edit().putInt("tried_install_version", AgendaWatchfaceService.CURRENT_WATCHAPP_VERSION_BUNDLED).commit();
+			prefs.edit().putInt("tried_install_version", SyncEngine.CURRENT_WATCHAPP_VERSION_BUNDLED).commit();
 			WatchappHandler.install(MainActivity.this);
 		}
 	}
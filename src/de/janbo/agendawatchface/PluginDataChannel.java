@@ -0,0 +1,295 @@
+package de.janbo.agendawatchface;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.os.RemoteException;
+import android.util.Log;
+
+import de.janbo.agendawatchface.api.AgendaItem;
+import de.janbo.agendawatchface.api.AgendaWatchfacePlugin;
+import de.janbo.agendawatchface.sync.ItemUpdate;
+
+/**
+ * Channel for plugins with a lot of items. Instead of putting all items into one intent (which fails beyond the binder transaction limit), plugins bind to the
+ * service (INTENT_ACTION_BIND_DATA_CHANNEL) and send their list through a Messenger in chunks: MSG_BEGIN, any number of MSG_CHUNK, MSG_END. Each chunk is turned
+ * into AgendaItems as soon as it arrives, the complete list is handed to the Listener at MSG_END.
+ *
+ * Plugins learn about the channel from INTENT_EXTRA_DATA_CHANNEL_VERSION in refresh requests. Plugins that don't know it keep using
+ * AgendaWatchfacePlugin.MAIN_SERVICE_INTENT_ACTION_ACCEPT_DATA. The messages' data Bundles use the AgendaWatchfacePlugin.MAIN_SERVICE_INTENT_EXTRA_... keys.
+ *
+ * From version 2 on, plugins may also change single items by id (MSG_UPDATE, or an intent with INTENT_ACTION_UPDATE_DATA and the same extras) instead of
+ * sending their whole list.
+ *
+ * Payloads that equal the last one a plugin sent are dropped before they are turned into AgendaItems. Their fingerprint is the plugin's
+ * INTENT_EXTRA_DATA_FINGERPRINT, or (for intents without one) computed from the raw parcelled Bundles. Uploads through the channel can only be
+ * skipped by the plugin's fingerprint (sent with MSG_BEGIN), since their chunks are read as they arrive
+ */
+public class PluginDataChannel implements Handler.Callback {
+	public static final String INTENT_ACTION_BIND_DATA_CHANNEL = "de.janbo.agendawatchface.intent.action.binddatachannel"; // bind to the service with this action to get the channel's Messenger
+	public static final String INTENT_EXTRA_DATA_CHANNEL_VERSION = "de.janbo.agendawatchface.intent.extra.datachannelversion"; // int, sent with refresh requests: version of the channel the service supports
+	public static final String INTENT_ACTION_UPDATE_DATA = "de.janbo.agendawatchface.intent.action.updatedata"; // start the service with this action to apply an update (extras like MSG_UPDATE's data)
+	public static final String INTENT_EXTRA_UPDATE_CLEAR = "de.janbo.agendawatchface.intent.extra.updateclear"; // boolean, remove all of the plugin's items before applying the rest
+	public static final String INTENT_EXTRA_UPDATE_IDS = "de.janbo.agendawatchface.intent.extra.updateids"; // String[], ids of the items in MAIN_SERVICE_INTENT_EXTRA_DATA (same order). Items with known id replace the old one
+	public static final String INTENT_EXTRA_UPDATE_DELETED_IDS = "de.janbo.agendawatchface.intent.extra.updatedeletedids"; // String[], ids of items to remove
+	public static final String INTENT_EXTRA_DATA_FINGERPRINT = "de.janbo.agendawatchface.intent.extra.datafingerprint"; // long (nonzero), optional: changes whenever the plugin's items change. With MAIN_SERVICE_INTENT_EXTRA_DATA or MSG_BEGIN
+	public static final int DATA_CHANNEL_VERSION = 3; // 1: chunked uploads, 2: updates by id, 3: fingerprints
+	public static final long NO_FINGERPRINT = 0; // never matches
+	public static final int MAX_CHUNK_SIZE = 100; // number of items per MSG_CHUNK plugins should not exceed (keeps each transaction far below the binder limit)
+	public static final int MAX_ITEMS_PER_UPLOAD = 5000; // uploads with more items are dropped
+	public static final int MAX_UPLOADS_IN_PROGRESS = 4; // MSG_BEGIN of further plugins is refused while this many uploads aren't finished
+	public static final long UPLOAD_TIMEOUT = 30 * 1000; // uploads not finished (MSG_END) within this time (in ms) after MSG_BEGIN are dropped
+
+	// Messages (Message.what). Data: PLUGIN_ID and PLUGIN_VERSION in all of them
+	public static final int MSG_BEGIN = 1; // starts an upload (discarding one the plugin didn't finish) that must end within UPLOAD_TIMEOUT. INTENT_EXTRA_DATA_FINGERPRINT: optional
+	public static final int MSG_CHUNK = 2; // DATA: Parcelable[] of item Bundles (AgendaItem.toBundle())
+	public static final int MSG_END = 3; // VIBRATE: boolean. Replaces the plugin's items with the ones uploaded. If replyTo is set, MSG_RESULT is sent there
+	public static final int MSG_RESULT = 4; // reply to MSG_END. arg1: number of items accepted, -1 if the upload was dropped, RESULT_UNCHANGED if it was skipped
+	public static final int RESULT_UNCHANGED = -2; // the upload's fingerprint matched the plugin's last one, so its chunks were ignored
+	public static final int MSG_UPDATE = 5; // INTENT_EXTRA_UPDATE_..., DATA and VIBRATE: changes single items (see ItemStore.update()). Not part of an upload
+
+	/**
+	 * Receives the uploaded lists
+	 */
+	public interface Listener {
+		/**
+		 * @param fingerprint
+		 *            the payload's fingerprint, or NO_FINGERPRINT
+		 */
+		public void onPluginData(List<AgendaItem> items, String pluginId, boolean vibrate, long fingerprint);
+
+		public void onPluginUpdate(ItemUpdate update, String pluginId, boolean vibrate);
+
+		/**
+		 * Gives true iff the plugin's current items came from a payload with this fingerprint
+		 */
+		public boolean isPluginDataUnchanged(String pluginId, long fingerprint);
+
+		/**
+		 * Called for uploads skipped because isPluginDataUnchanged()
+		 */
+		public void onPluginDataUnchanged(String pluginId);
+	}
+
+	private Listener listener;
+	private HashMap<String, ArrayList<AgendaItem>> uploads = new HashMap<String, ArrayList<AgendaItem>>(); // pluginId -> items received so far. Missing if there's no upload or it was dropped
+	private HashMap<String, Long> uploadFingerprints = new HashMap<String, Long>(); // pluginId -> fingerprint of its upload in progress (if it sent one)
+	private HashSet<String> unchangedUploads = new HashSet<String>(); // plugins whose upload in progress is skipped (fingerprint matched)
+	private HashMap<String, Runnable> uploadTimeouts = new HashMap<String, Runnable>(); // pluginId -> drops its upload in progress (skipped or not) when it's taking too long
+	private Handler handler; // processes the messages and runs the timeouts
+	private Messenger messenger;
+
+	/**
+	 * @param handler
+	 *            handler the messages are processed on (e.g., the one of the sync thread)
+	 * @param listener
+	 *            called on that handler's thread
+	 */
+	public PluginDataChannel(Handler handler, Listener listener) {
+		this.listener = listener;
+		this.handler = new Handler(handler.getLooper(), this);
+		this.messenger = new Messenger(this.handler);
+	}
+
+	/**
+	 * Gives the Messenger to return from onBind()
+	 */
+	public Messenger getMessenger() {
+		return messenger;
+	}
+
+	public boolean handleMessage(Message msg) {
+		Bundle data = msg.getData();
+		String pluginId = data == null ? null : data.getString(AgendaWatchfacePlugin.MAIN_SERVICE_INTENT_EXTRA_PLUGIN_ID);
+		if (pluginId == null) {
+			Log.e("PluginDataChannel", "No plugin id supplied");
+			return true;
+		}
+		if (data.getInt(AgendaWatchfacePlugin.MAIN_SERVICE_INTENT_EXTRA_PLUGIN_VERSION, -1) != AgendaWatchfacePlugin.PLUGIN_PROTOCOL_VERSION) {
+			Log.e("PluginDataChannel", "Plugin " + pluginId + " seems outdated (or didn't supply version). Ignoring its data");
+			dropUpload(pluginId);
+			reply(msg, -1);
+			return true;
+		}
+
+		switch (msg.what) {
+		case MSG_BEGIN:
+			long fingerprint = data.getLong(INTENT_EXTRA_DATA_FINGERPRINT, NO_FINGERPRINT);
+			dropUpload(pluginId);
+			if (uploadTimeouts.size() >= MAX_UPLOADS_IN_PROGRESS) {
+				Log.e("PluginDataChannel", "Too many uploads in progress. Refusing the one of plugin " + pluginId);
+				break;
+			}
+			startUploadTimeout(pluginId);
+			if (fingerprint != NO_FINGERPRINT && listener.isPluginDataUnchanged(pluginId, fingerprint)) {
+				unchangedUploads.add(pluginId); // chunks are ignored
+				break;
+			}
+			uploads.put(pluginId, new ArrayList<AgendaItem>());
+			if (fingerprint != NO_FINGERPRINT)
+				uploadFingerprints.put(pluginId, fingerprint);
+			break;
+		case MSG_CHUNK:
+			ArrayList<AgendaItem> items = uploads.get(pluginId);
+			if (items == null) // no MSG_BEGIN or dropped already
+				break;
+			try {
+				parseItems(data.getParcelableArray(AgendaWatchfacePlugin.MAIN_SERVICE_INTENT_EXTRA_DATA), items);
+			} catch (RuntimeException e) {
+				Log.e("PluginDataChannel", "Plugin " + pluginId + " supplied invalid data", e);
+			}
+			if (items.size() > MAX_ITEMS_PER_UPLOAD) {
+				Log.e("PluginDataChannel", "Plugin " + pluginId + " sent more than " + MAX_ITEMS_PER_UPLOAD + " items. Dropping its upload");
+				uploads.remove(pluginId); // keeps the timeout, so the upload still counts as in progress until MSG_END
+				uploadFingerprints.remove(pluginId);
+			}
+			break;
+		case MSG_END:
+			cancelUploadTimeout(pluginId);
+			if (unchangedUploads.remove(pluginId)) {
+				reply(msg, RESULT_UNCHANGED);
+				listener.onPluginDataUnchanged(pluginId);
+				break;
+			}
+			items = uploads.remove(pluginId);
+			Long uploadFingerprint = uploadFingerprints.remove(pluginId);
+			reply(msg, items == null ? -1 : items.size());
+			if (items != null)
+				listener.onPluginData(items, pluginId, data.getBoolean(AgendaWatchfacePlugin.MAIN_SERVICE_INTENT_EXTRA_VIBRATE, false),
+						uploadFingerprint == null ? NO_FINGERPRINT : uploadFingerprint);
+			break;
+		case MSG_UPDATE:
+			ItemUpdate update;
+			try {
+				update = parseUpdate(data);
+			} catch (RuntimeException e) {
+				Log.e("PluginDataChannel", "Plugin " + pluginId + " supplied invalid update", e);
+				break;
+			}
+			listener.onPluginUpdate(update, pluginId, data.getBoolean(AgendaWatchfacePlugin.MAIN_SERVICE_INTENT_EXTRA_VIBRATE, false));
+			break;
+		default:
+			Log.e("PluginDataChannel", "Unknown message " + msg.what + " from plugin " + pluginId);
+		}
+		return true;
+	}
+
+	/**
+	 * Forgets the plugin's upload in progress (if any)
+	 */
+	private void dropUpload(String pluginId) {
+		uploads.remove(pluginId);
+		uploadFingerprints.remove(pluginId);
+		unchangedUploads.remove(pluginId);
+		cancelUploadTimeout(pluginId);
+	}
+
+	/**
+	 * Drops the plugin's upload if it doesn't end within UPLOAD_TIMEOUT (e.g., because the plugin died in the middle of it)
+	 */
+	private void startUploadTimeout(final String pluginId) {
+		Runnable timeout = new Runnable() {
+			public void run() {
+				Log.e("PluginDataChannel", "Plugin " + pluginId + " didn't finish its upload in time. Dropping it");
+				uploadTimeouts.remove(pluginId);
+				dropUpload(pluginId);
+			}
+		};
+		uploadTimeouts.put(pluginId, timeout);
+		handler.postDelayed(timeout, UPLOAD_TIMEOUT);
+	}
+
+	private void cancelUploadTimeout(String pluginId) {
+		Runnable timeout = uploadTimeouts.remove(pluginId);
+		if (timeout != null)
+			handler.removeCallbacks(timeout);
+	}
+
+	/**
+	 * Sends MSG_RESULT to the message's replyTo (if any)
+	 */
+	private void reply(Message msg, int result) {
+		if (msg.replyTo == null)
+			return;
+		try {
+			msg.replyTo.send(Message.obtain(null, MSG_RESULT, result, 0));
+		} catch (RemoteException e) { // plugin is gone. Nobody to tell
+		}
+	}
+
+	/**
+	 * Turns item Bundles (as plugins send them) into AgendaItems
+	 *
+	 * @param data
+	 *            the Bundles (may be null)
+	 * @param result
+	 *            list to add the items to
+	 * @throws RuntimeException
+	 *             if a Bundle isn't a valid item (items before it are added)
+	 */
+	public static void parseItems(Parcelable[] data, List<AgendaItem> result) {
+		if (data == null)
+			return;
+		for (Parcelable item : data)
+			result.add(new AgendaItem((Bundle) item));
+	}
+
+	/**
+	 * Computes a fingerprint of item Bundles from their parcelled form. Bundles read from a Parcel (like intent extras) are only unparcelled when their values are
+	 * accessed, so this copies their raw bytes without creating any objects from them. Equal payloads of the same plugin give equal fingerprints
+	 *
+	 * @return the fingerprint (length and CRC32 of the bytes), or NO_FINGERPRINT if there is none
+	 */
+	public static long fingerprint(Parcelable[] data) {
+		if (data == null)
+			return NO_FINGERPRINT;
+		Parcel parcel = Parcel.obtain();
+		try {
+			parcel.writeParcelableArray(data, 0);
+			byte[] raw = parcel.marshall();
+			CRC32 crc = new CRC32();
+			crc.update(raw);
+			return ((long) raw.length << 32) | crc.getValue();
+		} catch (RuntimeException e) { // e.g., Bundles with file descriptors can't be marshalled. Just read them
+			return NO_FINGERPRINT;
+		} finally {
+			parcel.recycle();
+		}
+	}
+
+	/**
+	 * Reads an update from the INTENT_EXTRA_UPDATE_... and MAIN_SERVICE_INTENT_EXTRA_DATA values
+	 *
+	 * @throws RuntimeException
+	 *             if the data is invalid (e.g., ids and items don't match up)
+	 */
+	public static ItemUpdate parseUpdate(Bundle data) {
+		ItemUpdate result = new ItemUpdate();
+		result.clear = data.getBoolean(INTENT_EXTRA_UPDATE_CLEAR, false);
+		String[] deletedIds = data.getStringArray(INTENT_EXTRA_UPDATE_DELETED_IDS);
+		if (deletedIds != null)
+			for (String id : deletedIds)
+				result.deletedIds.add(id);
+
+		String[] ids = data.getStringArray(INTENT_EXTRA_UPDATE_IDS);
+		List<AgendaItem> items = new ArrayList<AgendaItem>();
+		parseItems(data.getParcelableArray(AgendaWatchfacePlugin.MAIN_SERVICE_INTENT_EXTRA_DATA), items);
+		if ((ids == null ? 0 : ids.length) != items.size())
+			throw new IllegalArgumentException("Got " + items.size() + " items for " + (ids == null ? 0 : ids.length) + " ids");
+		for (int i = 0; i < items.size(); i++) {
+			if (ids[i] == null)
+				throw new IllegalArgumentException("Item without id");
+			result.upsert(ids[i], items.get(i));
+		}
+		return result;
+	}
+}
@@ -0,0 +1,146 @@
+package de.janbo.agendawatchface;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Keeps track of which plugins answer our refresh requests and how fast they do so. Used to end the initial plugin data gathering as soon as all known plugins have
+ * reported, and to derive how long to wait for them at most.
+ */
+public class PluginResponseTracker {
+	public static final int MAX_MISSED_REQUESTS = 3; // plugins that didn't answer this many refresh requests in a row are forgotten
+	public static final long TIMEOUT_MARGIN = 100; // added to the response time in ms when computing the timeout
+	public static final long MAX_RESPONSE_TIME = 30 * 1000; // data arriving later than this (in ms) after a request is taken as pushed by the plugin, not as an answer
+	public static final long NO_SAMPLE = -1; // response time of plugins that never answered a request (only pushed data)
+
+	private HashMap<String, Long> responseTimes = new HashMap<String, Long>(); // known plugin id -> smoothed response time in ms, or NO_SAMPLE
+	private HashMap<String, Integer> missedRequests = new HashMap<String, Integer>(); // known plugin id -> number of refresh requests in a row it didn't answer
+	private Set<String> pending = new HashSet<String>(); // known plugins that haven't answered the current request yet
+	private Set<String> answered = new HashSet<String>(); // plugins that answered the current request
+	private boolean hadKnownPlugins = false; // whether there were known plugins to wait for when the current request was issued
+	private long requestTime = -1; // time in ms the current request was issued, or -1 if there hasn't been one
+
+	/**
+	 * Records that a refresh request went out to all plugins
+	 *
+	 * @param now
+	 *            current time in ms
+	 */
+	public synchronized void requestIssued(long now) {
+		// Plugins that didn't answer the last request missed it
+		for (String pluginId : pending) {
+			Integer missed = missedRequests.get(pluginId);
+			missedRequests.put(pluginId, missed == null ? 1 : missed + 1);
+		}
+		Iterator<Map.Entry<String, Integer>> it = missedRequests.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Integer> entry = it.next();
+			if (entry.getValue() >= MAX_MISSED_REQUESTS) {
+				responseTimes.remove(entry.getKey());
+				it.remove();
+			}
+		}
+
+		requestTime = now;
+		pending = new HashSet<String>(responseTimes.keySet());
+		answered.clear();
+		hadKnownPlugins = !pending.isEmpty();
+	}
+
+	/**
+	 * Records that a plugin delivered data
+	 *
+	 * @param pluginId
+	 * @param now
+	 *            current time in ms
+	 * @return true iff all known plugins have answered the current request (false if there were none, then nobody knows who else will answer)
+	 */
+	public synchronized boolean pluginReported(String pluginId, long now) {
+		boolean outstanding = requestTime != -1 && now - requestTime <= MAX_RESPONSE_TIME;
+		Long average = responseTimes.get(pluginId);
+		if (outstanding && answered.add(pluginId)) { // first answer to the current request. Update statistics
+			long sample = now - requestTime;
+			responseTimes.put(pluginId, average == null || average == NO_SAMPLE ? sample : (3 * average + sample) / 4);
+		} else if (average == null) { // plugin we didn't know yet, pushing data on its own. Nothing to time
+			responseTimes.put(pluginId, NO_SAMPLE);
+		}
+		pending.remove(pluginId);
+		missedRequests.remove(pluginId);
+
+		return hadKnownPlugins && pending.isEmpty();
+	}
+
+	/**
+	 * Forgets a plugin (e.g., because it was uninstalled), so that it isn't waited for anymore
+	 *
+	 * @return true iff all remaining known plugins have answered the current request
+	 */
+	public synchronized boolean forget(String pluginId) {
+		responseTimes.remove(pluginId);
+		missedRequests.remove(pluginId);
+		pending.remove(pluginId);
+		return hadKnownPlugins && pending.isEmpty();
+	}
+
+	/**
+	 * Computes how long to wait for all known plugins to answer a request
+	 *
+	 * @param defaultTimeout
+	 *            timeout to use if there is no history (also the least for plugins that never answered a request)
+	 * @param minTimeout
+	 *            lower bound for the result
+	 * @param maxTimeout
+	 *            upper bound for the result
+	 * @return timeout in ms
+	 */
+	public synchronized long getTimeout(long defaultTimeout, long minTimeout, long maxTimeout) {
+		long slowest = NO_SAMPLE;
+		boolean unsampled = false;
+		for (Long responseTime : responseTimes.values()) {
+			if (responseTime == NO_SAMPLE)
+				unsampled = true;
+			else
+				slowest = Math.max(slowest, responseTime);
+		}
+		if (slowest == NO_SAMPLE)
+			return defaultTimeout;
+		long result = Math.max(minTimeout, Math.min(maxTimeout, 2 * slowest + TIMEOUT_MARGIN));
+		return unsampled ? Math.max(result, defaultTimeout) : result;
+	}
+
+	/**
+	 * Serializes the known plugins and their response times (e.g., to put it into the SharedPreferences)
+	 */
+	public synchronized String toJsonString() {
+		JSONObject json = new JSONObject();
+		try {
+			for (Map.Entry<String, Long> entry : responseTimes.entrySet())
+				json.put(entry.getKey(), entry.getValue().longValue());
+		} catch (JSONException e) { // cannot happen for non-null keys
+		}
+		return json.toString();
+	}
+
+	/**
+	 * Restores known plugins and their response times from toJsonString()'s output. Invalid input is ignored
+	 */
+	public synchronized void fromJsonString(String str) {
+		if (str == null)
+			return;
+		try {
+			JSONObject json = new JSONObject(str);
+			Iterator<?> keys = json.keys();
+			while (keys.hasNext()) {
+				String pluginId = (String) keys.next();
+				responseTimes.put(pluginId, json.getLong(pluginId));
+			}
+		} catch (JSONException e) {
+		}
+	}
+}
@@ -0,0 +1,207 @@
+package de.janbo.agendawatchface;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.janbo.agendawatchface.api.AgendaItem;
+import de.janbo.agendawatchface.sync.ItemUpdate;
+
+/**
+ * Keeps plugins from flooding the service: limits on how many items (and bytes) a plugin may keep, and on how often its data is applied. Each plugin has a token
+ * bucket of UPDATE_BURST updates, refilled every UPDATE_INTERVAL. Data arriving while the bucket is empty is deferred until there's a token again: a newer list
+ * replaces the deferred one, updates are combined. Lists superseded by a newer one while they wait on the sync thread are dropped unread. Counts all of this per
+ * plugin
+ */
+public class PluginThrottle {
+	public static final int MAX_ITEMS_PER_PLUGIN = 500; // items beyond this (the latest ones) are dropped
+	public static final long MAX_BYTES_PER_PLUGIN = 256 * 1024; // estimated memory a plugin's items may take (see ItemStore.estimateSize())
+	public static final int UPDATE_BURST = 5; // number of updates applied right away after a quiet period
+	public static final long UPDATE_INTERVAL = 10 * 1000; // time (ms) after which a plugin gets another token
+
+	/**
+	 * Data deferred because the plugin ran out of tokens. Applied in order: items (if not null), then update (if not null)
+	 */
+	public static class Pending {
+		public List<AgendaItem> items = null;
+		public long fingerprint = PluginDataChannel.NO_FINGERPRINT; // of items
+		public ItemUpdate update = null;
+		public boolean vibrate = false;
+	}
+
+	/**
+	 * What the throttle did to a plugin
+	 */
+	public static class Counters {
+		public int applied = 0; // lists and updates applied
+		public int throttled = 0; // lists and updates deferred
+		public int superseded = 0; // lists dropped because a newer one came in
+		public int itemsDropped = 0; // items dropped for exceeding MAX_ITEMS_PER_PLUGIN or MAX_BYTES_PER_PLUGIN
+	}
+
+	private HashMap<String, Object> latestPayloads = new HashMap<String, Object>(); // pluginId -> latest list it sent (e.g., the Intent) that hasn't been handled
+	private HashMap<String, Double> tokens = new HashMap<String, Double>(); // pluginId -> tokens left
+	private HashMap<String, Long> lastRefill = new HashMap<String, Long>(); // pluginId -> time (ms) tokens were last computed
+	private HashMap<String, Pending> pending = new HashMap<String, Pending>();
+	private HashMap<String, Counters> counters = new HashMap<String, Counters>();
+
+	/**
+	 * Records that a list from the plugin is queued for handling (call in arrival order)
+	 *
+	 * @param payload
+	 *            identifies the list (e.g., the Intent)
+	 */
+	public synchronized void payloadQueued(String pluginId, Object payload) {
+		latestPayloads.put(pluginId, payload);
+	}
+
+	/**
+	 * Returns true iff a newer list of the plugin was queued after payload. Counts those
+	 */
+	public synchronized boolean isSuperseded(String pluginId, Object payload) {
+		Object latest = latestPayloads.get(pluginId);
+		if (latest == null || latest == payload) {
+			latestPayloads.remove(pluginId);
+			return false;
+		}
+		getCounters(pluginId).superseded++;
+		return true;
+	}
+
+	/**
+	 * Takes a token from the plugin's bucket if there is one and nothing is deferred already (data must be applied in order)
+	 *
+	 * @param now
+	 *            current time in ms (monotonic)
+	 * @return true iff the plugin's data may be applied now
+	 */
+	public synchronized boolean tryAcquire(String pluginId, long now) {
+		if (pending.containsKey(pluginId))
+			return false;
+		double available = refill(pluginId, now);
+		if (available < 1)
+			return false;
+		tokens.put(pluginId, available - 1);
+		getCounters(pluginId).applied++;
+		return true;
+	}
+
+	/**
+	 * Gives the time (ms) until the plugin has a token again
+	 */
+	public synchronized long getTimeUntilToken(String pluginId, long now) {
+		double available = refill(pluginId, now);
+		return available >= 1 ? 0 : (long) Math.ceil((1 - available) * UPDATE_INTERVAL);
+	}
+
+	private double refill(String pluginId, long now) {
+		Double available = tokens.get(pluginId);
+		Long last = lastRefill.get(pluginId);
+		double result = available == null ? UPDATE_BURST : Math.min(UPDATE_BURST, available + (double) (now - last) / UPDATE_INTERVAL);
+		tokens.put(pluginId, result);
+		lastRefill.put(pluginId, now);
+		return result;
+	}
+
+	/**
+	 * Defers a list, replacing anything deferred for the plugin so far
+	 */
+	public synchronized void deferItems(String pluginId, List<AgendaItem> items, long fingerprint, boolean vibrate) {
+		Pending data = getPending(pluginId);
+		if (data.items != null || data.update != null) // never applied
+			getCounters(pluginId).superseded++;
+		data.items = items;
+		data.fingerprint = fingerprint;
+		data.update = null; // the list replaces their results
+		data.vibrate |= vibrate;
+	}
+
+	/**
+	 * Defers an update, to be applied after what's deferred for the plugin so far
+	 */
+	public synchronized void deferUpdate(String pluginId, ItemUpdate update, boolean vibrate) {
+		Pending data = getPending(pluginId);
+		if (data.update == null)
+			data.update = new ItemUpdate();
+		data.update.append(update);
+		data.vibrate |= vibrate;
+	}
+
+	private Pending getPending(String pluginId) {
+		getCounters(pluginId).throttled++;
+		Pending data = pending.get(pluginId);
+		if (data == null) {
+			data = new Pending();
+			pending.put(pluginId, data);
+		}
+		return data;
+	}
+
+	/**
+	 * Returns true iff data of the plugin is deferred (then newer data must be deferred as well, or it would overtake it)
+	 */
+	public synchronized boolean hasPending(String pluginId) {
+		return pending.containsKey(pluginId);
+	}
+
+	/**
+	 * Gives the ids of plugins with deferred data
+	 */
+	public synchronized List<String> getPendingPlugins() {
+		return new ArrayList<String>(pending.keySet());
+	}
+
+	/**
+	 * Removes and gives the plugin's deferred data, taking a token (call once getTimeUntilToken() is 0)
+	 */
+	public synchronized Pending takePending(String pluginId, long now) {
+		Pending data = pending.remove(pluginId);
+		if (data != null) {
+			tokens.put(pluginId, refill(pluginId, now) - 1);
+			getCounters(pluginId).applied++;
+		}
+		return data;
+	}
+
+	/**
+	 * Records items dropped for exceeding the limits
+	 */
+	public synchronized void itemsDropped(String pluginId, int count) {
+		getCounters(pluginId).itemsDropped += count;
+	}
+
+	/**
+	 * Forgets a plugin (e.g., because its data was removed)
+	 */
+	public synchronized void remove(String pluginId) {
+		latestPayloads.remove(pluginId);
+		pending.remove(pluginId);
+		tokens.remove(pluginId);
+		lastRefill.remove(pluginId);
+		counters.remove(pluginId);
+	}
+
+	public synchronized Counters getCounters(String pluginId) {
+		Counters result = counters.get(pluginId);
+		if (result == null) {
+			result = new Counters();
+			counters.put(pluginId, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Writes the counters of all plugins as text
+	 */
+	public synchronized void dump(PrintWriter writer) {
+		writer.println("Plugin throttling: " + counters.size() + " plugins");
+		for (Map.Entry<String, Counters> entry : counters.entrySet()) {
+			Counters c = entry.getValue();
+			writer.println(entry.getKey() + " applied=" + c.applied + " throttled=" + c.throttled + " superseded=" + c.superseded + " itemsDropped=" + c.itemsDropped
+					+ (pending.containsKey(entry.getKey()) ? " (data deferred)" : ""));
+		}
+		writer.flush();
+	}
+}
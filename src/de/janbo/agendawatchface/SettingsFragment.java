@@ -61,12 +61,12 @@ public class SettingsFragment extends PreferenceFragment {
 	};
 	
 	/**
-	 * Listener for preference changes. Will issue the a watch update
+	 * Listener for preference changes. Lets the service decide whether the watch needs an update (it combines rapid changes into one)
 	 */
 	SharedPreferences.OnSharedPreferenceChangeListener listener = new SharedPreferences.OnSharedPreferenceChangeListener() {
 		public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
 			Intent intent = new Intent(getActivity().getApplicationContext(), AgendaWatchfaceService.class);
-			intent.setAction(AgendaWatchfaceService.INTENT_ACTION_FORCE_WATCH_SYNC);			
+			intent.setAction(AgendaWatchfaceService.INTENT_ACTION_SETTINGS_CHANGED);
 			getActivity().startService(intent);
 		}
 	};
@@ -0,0 +1,213 @@
+package de.janbo.agendawatchface;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import de.janbo.agendawatchface.api.AgendaItem;
+import de.janbo.agendawatchface.api.LineOverflowBehavior;
+import de.janbo.agendawatchface.api.TimeDisplayType;
+
+/**
+ * What the service knows after a successful sync: the plugins' data and what the watch has. Stored in a compact binary file so that a restarted service can answer
+ * the watch right away instead of waiting for the plugins and resending everything.
+ */
+public class SyncStateSnapshot {
+	public static final int FILE_MAGIC = 0x41574653; // "AWFS"
+	public static final int FILE_VERSION = 2; // increment when changing the format. Files with other versions are ignored
+
+	public HashMap<String, List<AgendaItem>> pluginData; // pluginId -> items (like AgendaWatchfaceService.pluginData)
+	public HashMap<String, HashMap<String, AgendaItem>> itemIds; // pluginId -> item id -> item (one of pluginData's), for items plugins added by id
+	public List<AgendaItem> itemsSuccessfullySent; // items the watch has, or null if unknown
+	public int lastSuccessfulSyncId; // id of the data the watch has
+	public long lastSync; // time since epoch in ms where the sync went through
+
+	public SyncStateSnapshot(HashMap<String, List<AgendaItem>> pluginData, HashMap<String, HashMap<String, AgendaItem>> itemIds, List<AgendaItem> itemsSuccessfullySent,
+			int lastSuccessfulSyncId, long lastSync) {
+		super();
+		this.pluginData = pluginData;
+		this.itemIds = itemIds;
+		this.itemsSuccessfullySent = itemsSuccessfullySent;
+		this.lastSuccessfulSyncId = lastSuccessfulSyncId;
+		this.lastSync = lastSync;
+	}
+
+	/**
+	 * Writes the snapshot to the file (atomically, via a temporary file)
+	 */
+	public void write(File file) throws IOException {
+		File tmpFile = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+		try {
+			out.writeInt(FILE_MAGIC);
+			out.writeInt(FILE_VERSION);
+			out.writeInt(lastSuccessfulSyncId);
+			out.writeLong(lastSync);
+
+			// Plugin data, each item with its id (if any). Also remember which plugin every item belongs to
+			IdentityHashMap<AgendaItem, String> itemPlugins = new IdentityHashMap<AgendaItem, String>();
+			out.writeInt(pluginData.size());
+			for (Map.Entry<String, List<AgendaItem>> entry : pluginData.entrySet()) {
+				IdentityHashMap<AgendaItem, String> idOf = new IdentityHashMap<AgendaItem, String>();
+				HashMap<String, AgendaItem> ids = itemIds.get(entry.getKey());
+				if (ids != null)
+					for (Map.Entry<String, AgendaItem> id : ids.entrySet())
+						idOf.put(id.getValue(), id.getKey());
+				out.writeUTF(entry.getKey());
+				out.writeInt(entry.getValue().size());
+				for (AgendaItem item : entry.getValue()) {
+					writeItem(out, item);
+					writeNullableString(out, idOf.get(item));
+					itemPlugins.put(item, entry.getKey());
+				}
+			}
+
+			// Items sent. Only restorable if we know their plugins
+			boolean sentItemsKnown = itemsSuccessfullySent != null;
+			if (sentItemsKnown)
+				for (AgendaItem item : itemsSuccessfullySent)
+					sentItemsKnown &= itemPlugins.containsKey(item);
+			out.writeInt(sentItemsKnown ? itemsSuccessfullySent.size() : -1);
+			if (sentItemsKnown)
+				for (AgendaItem item : itemsSuccessfullySent) {
+					out.writeUTF(itemPlugins.get(item));
+					writeItem(out, item);
+				}
+		} finally {
+			out.close();
+		}
+
+		if (!tmpFile.renameTo(file))
+			throw new IOException("Could not rename " + tmpFile + " to " + file);
+	}
+
+	/**
+	 * Reads a snapshot from the file
+	 *
+	 * @return the snapshot or null if there is none (or it's unreadable or from another version)
+	 */
+	public static SyncStateSnapshot read(File file) {
+		if (!file.exists())
+			return null;
+
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION)
+				return null;
+			int lastSuccessfulSyncId = in.readInt();
+			long lastSync = in.readLong();
+
+			HashMap<String, List<AgendaItem>> pluginData = new HashMap<String, List<AgendaItem>>();
+			HashMap<String, HashMap<String, AgendaItem>> itemIds = new HashMap<String, HashMap<String, AgendaItem>>();
+			int numPlugins = in.readInt();
+			for (int i = 0; i < numPlugins; i++) {
+				String pluginId = in.readUTF();
+				int numItems = in.readInt();
+				List<AgendaItem> items = new ArrayList<AgendaItem>(numItems);
+				HashMap<String, AgendaItem> ids = new HashMap<String, AgendaItem>();
+				for (int j = 0; j < numItems; j++) {
+					AgendaItem item = readItem(in, pluginId);
+					String id = readNullableString(in);
+					if (id != null)
+						ids.put(id, item);
+					items.add(item);
+				}
+				pluginData.put(pluginId, items);
+				if (!ids.isEmpty())
+					itemIds.put(pluginId, ids);
+			}
+
+			List<AgendaItem> itemsSuccessfullySent = null;
+			int numSent = in.readInt();
+			if (numSent >= 0) {
+				itemsSuccessfullySent = new ArrayList<AgendaItem>(numSent);
+				for (int i = 0; i < numSent; i++) {
+					String pluginId = in.readUTF();
+					itemsSuccessfullySent.add(readItem(in, pluginId));
+				}
+			}
+
+			return new SyncStateSnapshot(pluginData, itemIds, itemsSuccessfullySent, lastSuccessfulSyncId, lastSync);
+		} catch (IOException e) {
+			return null;
+		} catch (RuntimeException e) { // e.g., enum values that don't exist anymore
+			return null;
+		} finally {
+			if (in != null)
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+		}
+	}
+
+	private static void writeItem(DataOutputStream out, AgendaItem item) throws IOException {
+		out.writeLong(item.startTime == null ? Long.MIN_VALUE : item.startTime.getTime());
+		out.writeLong(item.endTime == null ? Long.MIN_VALUE : item.endTime.getTime());
+		writeNullableString(out, item.timezone == null ? null : item.timezone.getID());
+		writeLine(out, item.line1);
+		writeLine(out, item.line2);
+	}
+
+	private static AgendaItem readItem(DataInputStream in, String pluginId) throws IOException {
+		AgendaItem item = new AgendaItem(pluginId);
+		long startTime = in.readLong();
+		item.startTime = startTime == Long.MIN_VALUE ? null : new Date(startTime);
+		long endTime = in.readLong();
+		item.endTime = endTime == Long.MIN_VALUE ? null : new Date(endTime);
+		String timezone = readNullableString(in);
+		item.timezone = timezone == null ? null : TimeZone.getTimeZone(timezone);
+		item.line1 = readLine(in);
+		item.line2 = readLine(in);
+		return item;
+	}
+
+	private static void writeLine(DataOutputStream out, AgendaItem.Line line) throws IOException {
+		out.writeBoolean(line != null);
+		if (line == null)
+			return;
+		writeNullableString(out, line.text);
+		out.writeBoolean(line.textBold);
+		out.writeByte(line.overflow == null ? -1 : line.overflow.ordinal());
+		out.writeByte(line.timeDisplay == null ? -1 : line.timeDisplay.ordinal());
+		out.writeByte(line.timeShowCountdown == null ? -1 : line.timeShowCountdown ? 1 : 0);
+	}
+
+	private static AgendaItem.Line readLine(DataInputStream in) throws IOException {
+		if (!in.readBoolean())
+			return null;
+		AgendaItem.Line line = new AgendaItem.Line();
+		line.text = readNullableString(in);
+		line.textBold = in.readBoolean();
+		byte overflow = in.readByte();
+		line.overflow = overflow == -1 ? null : LineOverflowBehavior.values()[overflow];
+		byte timeDisplay = in.readByte();
+		line.timeDisplay = timeDisplay == -1 ? null : TimeDisplayType.values()[timeDisplay];
+		byte countdown = in.readByte();
+		line.timeShowCountdown = countdown == -1 ? null : Boolean.valueOf(countdown == 1);
+		return line;
+	}
+
+	private static void writeNullableString(DataOutputStream out, String str) throws IOException {
+		out.writeBoolean(str != null);
+		if (str != null)
+			out.writeUTF(str);
+	}
+
+	private static String readNullableString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+}
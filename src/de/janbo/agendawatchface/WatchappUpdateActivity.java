@@ -3,6 +3,7 @@ package de.janbo.agendawatchface;
 import android.app.Activity;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
+import de.janbo.agendawatchface.sync.SyncEngine;
 
 /**
  * Very simple activity that starts, triggers the watchapp update, then finishes itself
@@ -13,7 +14,7 @@ public class WatchappUpdateActivity extends Activity {
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
-		PreferenceManager.getDefaultSharedPreferences(this).edit().putInt("tried_install_version", AgendaWatchfaceService.CURRENT_WATCHAPP_VERSION_BUNDLED).commit();
+		PreferenceManager.getDefaultSharedPreferences(this).edit().putInt("tried_install_version", SyncEngine.CURRENT_WATCHAPP_VERSION_BUNDLED).commit();
 		
 		WatchappHandler.install(this);
 		finish();
@@ -0,0 +1,50 @@
+package de.janbo.agendawatchface.sync;
+
+import java.util.Arrays;
+
+/**
+ * An item as it is sent to the watch: texts, designs and times, everything but its index. Items are encoded once (see SyncEngine.encodeItem()) and the result is
+ * reused for every size check, message and sync id after that. Immutable, so equal items may share it. Two EncodedItems are equal iff the watch can't tell them
+ * apart (the settings version doesn't count)
+ */
+public class EncodedItem {
+	public final EncodedText text1; // line1's text, or EMPTY if there is no line1
+	public final EncodedText text2;
+	public final byte design1; // 0 if there is no line1
+	public final byte design2;
+	public final int startTime; // in pebble format
+	public final int endTime;
+	public final int settingsVersion; // version of the settings the designs were computed with
+
+	public EncodedItem(EncodedText text1, EncodedText text2, byte design1, byte design2, int startTime, int endTime, int settingsVersion) {
+		this.text1 = text1;
+		this.text2 = text2;
+		this.design1 = design1;
+		this.design2 = design2;
+		this.startTime = startTime;
+		this.endTime = endTime;
+		this.settingsVersion = settingsVersion;
+	}
+
+	@Override
+	public int hashCode() {
+		int h = Arrays.hashCode(text1.utf8);
+		h = 31 * h + Arrays.hashCode(text2.utf8);
+		h = 31 * h + design1;
+		h = 31 * h + design2;
+		h = 31 * h + startTime;
+		h = 31 * h + endTime;
+		return h;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o)
+			return true;
+		if (!(o instanceof EncodedItem))
+			return false;
+		EncodedItem other = (EncodedItem) o;
+		return design1 == other.design1 && design2 == other.design2 && startTime == other.startTime && endTime == other.endTime
+				&& Arrays.equals(text1.utf8, other.text1.utf8) && Arrays.equals(text2.utf8, other.text2.utf8);
+	}
+}
@@ -0,0 +1,130 @@
+package de.janbo.agendawatchface.sync;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import de.janbo.agendawatchface.api.AgendaItem;
+
+/**
+ * LRU cache of EncodedItems, keyed by the content of the item (everything that goes into the encoding) and the settings version. Equal items (e.g., sent again
+ * by a plugin) are encoded only once
+ */
+public class EncodedItemCache {
+	public static final int DEFAULT_CAPACITY = 256; // number of items to keep
+
+	/**
+	 * Everything an item's encoding depends on
+	 */
+	public static class Key {
+		private final String text1, text2; // the lines' original texts
+		private final int line1, line2; // the lines' attributes, see describe()
+		private final long startTime, endTime; // ms since epoch, Long.MIN_VALUE if null
+		private final String timezone; // id, or null
+		private final int settingsVersion;
+		private final int hash;
+
+		public Key(AgendaItem item, int settingsVersion) {
+			this.text1 = item.line1 == null ? null : item.line1.text;
+			this.text2 = item.line2 == null ? null : item.line2.text;
+			this.line1 = describe(item.line1);
+			this.line2 = describe(item.line2);
+			this.startTime = item.startTime == null ? Long.MIN_VALUE : item.startTime.getTime();
+			this.endTime = item.endTime == null ? Long.MIN_VALUE : item.endTime.getTime();
+			this.timezone = item.timezone == null ? null : item.timezone.getID();
+			this.settingsVersion = settingsVersion;
+
+			int h = settingsVersion;
+			h = 31 * h + (text1 == null ? 0 : text1.hashCode());
+			h = 31 * h + (text2 == null ? 0 : text2.hashCode());
+			h = 31 * h + line1;
+			h = 31 * h + line2;
+			h = 31 * h + (int) (startTime ^ (startTime >>> 32));
+			h = 31 * h + (int) (endTime ^ (endTime >>> 32));
+			h = 31 * h + (timezone == null ? 0 : timezone.hashCode());
+			this.hash = h;
+		}
+
+		/**
+		 * Packs the attributes of a line that influence its design into an int (-1 if there is no line)
+		 */
+		private static int describe(AgendaItem.Line line) {
+			if (line == null)
+				return -1;
+			int result = line.textBold ? 1 : 0;
+			result |= (line.overflow == null ? 0 : line.overflow.ordinal() + 1) << 1;
+			result |= (line.timeDisplay == null ? 0 : line.timeDisplay.ordinal() + 1) << 8;
+			result |= (line.timeShowCountdown == null ? 0 : line.timeShowCountdown ? 1 : 2) << 16;
+			return result;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o)
+				return true;
+			if (!(o instanceof Key))
+				return false;
+			Key other = (Key) o;
+			return hash == other.hash && settingsVersion == other.settingsVersion && line1 == other.line1 && line2 == other.line2 && startTime == other.startTime
+					&& endTime == other.endTime && equal(text1, other.text1) && equal(text2, other.text2) && equal(timezone, other.timezone);
+		}
+
+		private static boolean equal(Object a, Object b) {
+			return a == null ? b == null : a.equals(b);
+		}
+	}
+
+	private final LinkedHashMap<Key, EncodedItem> entries;
+	private int hits = 0;
+	private int misses = 0;
+
+	public EncodedItemCache(final int capacity) {
+		entries = new LinkedHashMap<Key, EncodedItem>(16, 0.75f, true) { // access order
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, EncodedItem> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Gives the cached encoding, or null if there is none
+	 */
+	public EncodedItem get(Key key) {
+		EncodedItem result = entries.get(key);
+		if (result == null)
+			misses++;
+		else
+			hits++;
+		return result;
+	}
+
+	public void put(Key key, EncodedItem item) {
+		entries.put(key, item);
+	}
+
+	/**
+	 * Removes all entries
+	 */
+	public void clear() {
+		entries.clear();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public int getHits() {
+		return hits;
+	}
+
+	public int getMisses() {
+		return misses;
+	}
+}
@@ -0,0 +1,101 @@
+package de.janbo.agendawatchface.sync;
+
+/**
+ * A text as it is sent to the watch: trimmed to at most SyncEngine.MAX_STRING_LEN_TO_SEND bytes of UTF-8 (without splitting characters), together with its
+ * encoding. Encoding and trimming happen in a single pass over the string
+ */
+public class EncodedText {
+	public static final EncodedText EMPTY = new EncodedText("", new byte[0]);
+	private static final String ELLIPSIS = "..."; // appended to trimmed texts (3 bytes)
+
+	public final String text; // the (possibly trimmed) text to send
+	public final byte[] utf8; // UTF-8 encoding of text, without terminator
+
+	private EncodedText(String text, byte[] utf8) {
+		this.text = text;
+		this.utf8 = utf8;
+	}
+
+	/**
+	 * Gives the length of the text on the wire in bytes (including the terminating zero)
+	 */
+	public int getSerializedSize() {
+		return utf8.length + 1;
+	}
+
+	/**
+	 * Encodes and trims the supplied string
+	 *
+	 * @param str
+	 *            the text. null is sent as "(null)"
+	 */
+	public static EncodedText encode(String str) {
+		if (str == null)
+			str = "(null)";
+
+		byte[] buffer = new byte[SyncEngine.MAX_STRING_LEN_TO_SEND];
+		int maxTrimmedLength = SyncEngine.MAX_STRING_LEN_TO_SEND - ELLIPSIS.length(); // bytes left for the text if it needs trimming
+		int length = 0; // bytes written to buffer
+		int trimmedLength = 0; // length (in bytes) of the longest prefix of whole characters that fits into maxTrimmedLength
+		int trimmedChars = 0; // the same prefix's length in chars
+		int i = 0;
+		while (i < str.length()) {
+			int c = str.charAt(i);
+			int chars = 1;
+			int bytes;
+			if (c < 0x80)
+				bytes = 1;
+			else if (c < 0x800)
+				bytes = 2;
+			else if (Character.isHighSurrogate((char) c) && i + 1 < str.length() && Character.isLowSurrogate(str.charAt(i + 1))) {
+				c = Character.toCodePoint((char) c, str.charAt(i + 1));
+				chars = 2;
+				bytes = 4;
+			} else if (Character.isSurrogate((char) c)) { // unpaired surrogate, replaced like String.getBytes() does
+				c = '?';
+				bytes = 1;
+			} else
+				bytes = 3;
+
+			if (length + bytes > SyncEngine.MAX_STRING_LEN_TO_SEND) { // too long. Trim
+				byte[] utf8 = new byte[trimmedLength + ELLIPSIS.length()];
+				System.arraycopy(buffer, 0, utf8, 0, trimmedLength);
+				for (int j = 0; j < ELLIPSIS.length(); j++)
+					utf8[trimmedLength + j] = (byte) ELLIPSIS.charAt(j);
+				return new EncodedText(str.substring(0, trimmedChars) + ELLIPSIS, utf8);
+			}
+
+			switch (bytes) {
+			case 1:
+				buffer[length] = (byte) c;
+				break;
+			case 2:
+				buffer[length] = (byte) (0xC0 | (c >> 6));
+				buffer[length + 1] = (byte) (0x80 | (c & 0x3F));
+				break;
+			case 3:
+				buffer[length] = (byte) (0xE0 | (c >> 12));
+				buffer[length + 1] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buffer[length + 2] = (byte) (0x80 | (c & 0x3F));
+				break;
+			default:
+				buffer[length] = (byte) (0xF0 | (c >> 18));
+				buffer[length + 1] = (byte) (0x80 | ((c >> 12) & 0x3F));
+				buffer[length + 2] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buffer[length + 3] = (byte) (0x80 | (c & 0x3F));
+			}
+			length += bytes;
+			i += chars;
+			if (length <= maxTrimmedLength) {
+				trimmedLength = length;
+				trimmedChars = i;
+			}
+		}
+
+		if (length == 0)
+			return EMPTY;
+		byte[] utf8 = new byte[length];
+		System.arraycopy(buffer, 0, utf8, 0, length);
+		return new EncodedText(str, utf8);
+	}
+}
@@ -0,0 +1,90 @@
+package de.janbo.agendawatchface.sync;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import de.janbo.agendawatchface.api.AgendaItem;
+
+/**
+ * Merges the plugins' item lists into the list to send to the watch. The plugins' lists are kept sorted (see sortForMerge()), so merging is a k-way merge that
+ * stops as soon as it has enough items
+ */
+public class ItemMerger {
+	/**
+	 * Position in one of the lists being merged
+	 */
+	private static class Cursor implements Comparable<Cursor> {
+		private final List<AgendaItem> list;
+		private final int listIndex; // position of the list in the collection (decides between equal items, like a stable sort of the concatenated lists)
+		private int position = 0; // index of the next item in list
+
+		public Cursor(List<AgendaItem> list, int listIndex) {
+			this.list = list;
+			this.listIndex = listIndex;
+		}
+
+		public AgendaItem current() {
+			return list.get(position);
+		}
+
+		public int compareTo(Cursor other) {
+			int result = current().compareTo(other.current());
+			return result != 0 ? result : listIndex - other.listIndex;
+		}
+	}
+
+	/**
+	 * Gives the list sorted as merge() expects it. Returns the list itself if it is sorted already, a sorted copy otherwise
+	 */
+	public static List<AgendaItem> sortForMerge(List<AgendaItem> items) {
+		for (int i = 1; i < items.size(); i++) {
+			if (items.get(i - 1) == null || items.get(i) == null || items.get(i - 1).compareTo(items.get(i)) > 0) {
+				List<AgendaItem> result = new ArrayList<AgendaItem>(items.size());
+				for (AgendaItem item : items)
+					if (item != null)
+						result.add(item);
+				Collections.sort(result);
+				return result;
+			}
+		}
+		return items;
+	}
+
+	/**
+	 * Merges the lists: sorted, without items that are over, trimmed to maxItems
+	 *
+	 * @param pluginLists
+	 *            the plugins' item lists, each sorted (see sortForMerge())
+	 * @param now
+	 *            current time since epoch in ms
+	 * @param maxItems
+	 *            maximum number of items in the result
+	 * @return a new list
+	 */
+	public static List<AgendaItem> merge(Collection<List<AgendaItem>> pluginLists, long now, int maxItems) {
+		List<AgendaItem> itemsToSend = new ArrayList<AgendaItem>(Math.max(0, maxItems));
+		if (maxItems <= 0)
+			return itemsToSend;
+
+		PriorityQueue<Cursor> heap = new PriorityQueue<Cursor>(Math.max(1, pluginLists.size()));
+		int listIndex = 0;
+		for (List<AgendaItem> pluginItems : pluginLists) {
+			if (!pluginItems.isEmpty())
+				heap.add(new Cursor(pluginItems, listIndex));
+			listIndex++;
+		}
+
+		while (!heap.isEmpty() && itemsToSend.size() < maxItems) {
+			Cursor cursor = heap.poll();
+			AgendaItem item = cursor.current();
+			if (item.endTime == null || item.endTime.getTime() > now) // skip items that are over
+				itemsToSend.add(item);
+			if (++cursor.position < cursor.list.size())
+				heap.add(cursor);
+		}
+		return itemsToSend;
+	}
+}
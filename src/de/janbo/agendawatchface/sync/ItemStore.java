@@ -0,0 +1,422 @@
+package de.janbo.agendawatchface.sync;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import de.janbo.agendawatchface.api.AgendaItem;
+
+/**
+ * The plugins' items, indexed by time: each plugin's list is sorted by start time (for ItemMerger), and the end times of all items are kept in a sorted index.
+ * Items that are over are dropped as soon as the index says there are any. Also tells when the items to send change next (see getNextChange()).
+ * Plugins either replace their items as a whole (put()) or change single ones by id (update()). Remembers when each plugin last reported, so that data of plugins
+ * that stopped reporting can be dropped (see removeStale())
+ */
+public class ItemStore {
+	public static final int ITEM_OVERHEAD = 200; // estimated bytes an item takes in memory apart from its texts (objects, dates, references)
+
+	private HashMap<String, List<AgendaItem>> pluginData = new HashMap<String, List<AgendaItem>>(); // pluginId -> items that aren't over, sorted
+	private TreeMap<Long, Integer> endTimes = new TreeMap<Long, Integer>(); // end time (ms since epoch) -> number of items ending then. Items without end time aren't included
+	private HashMap<String, HashMap<String, AgendaItem>> itemIds = new HashMap<String, HashMap<String, AgendaItem>>(); // pluginId -> item id -> item, for items added by update()
+	private HashMap<String, Long> fingerprints = new HashMap<String, Long>(); // pluginId -> fingerprint of the payload its items were put() from (see setFingerprint())
+	private HashMap<String, Long> lastUpdates = new HashMap<String, Long>(); // pluginId -> time since epoch in ms the plugin last reported (for plugins with data)
+
+	public ItemStore() {
+	}
+
+	/**
+	 * Creates a store holding the given plugin data (e.g., from a SyncStateSnapshot)
+	 *
+	 * @param itemIds
+	 *            pluginId -> item id -> item (one of pluginData's), like getItemIds() gave them
+	 * @param updated
+	 *            time since epoch in ms the data is from (counts as the plugins' last report)
+	 */
+	public ItemStore(Map<String, List<AgendaItem>> pluginData, Map<String, ? extends Map<String, AgendaItem>> itemIds, long updated) {
+		for (Map.Entry<String, List<AgendaItem>> entry : pluginData.entrySet()) {
+			put(entry.getKey(), entry.getValue(), Long.MIN_VALUE);
+			lastUpdates.put(entry.getKey(), updated);
+			Map<String, AgendaItem> ids = itemIds.get(entry.getKey());
+			if (ids != null) // put() keeps the item objects, so the ids still refer to the stored items
+				this.itemIds.put(entry.getKey(), new HashMap<String, AgendaItem>(ids));
+		}
+	}
+
+	/**
+	 * Sets a plugin's items
+	 *
+	 * @param items
+	 *            the items, in any order
+	 * @param now
+	 *            current time since epoch in ms. Items that are over aren't stored
+	 * @return false iff the plugin's items didn't change (apart from items that are over)
+	 */
+	public boolean put(String pluginId, List<AgendaItem> items, long now) {
+		List<AgendaItem> sorted = new ArrayList<AgendaItem>(items.size());
+		for (AgendaItem item : items)
+			if (item != null && !isOver(item, now))
+				sorted.add(item);
+		sorted = ItemMerger.sortForMerge(sorted);
+
+		List<AgendaItem> old = pluginData.get(pluginId);
+		itemIds.remove(pluginId); // the new items have no ids
+		fingerprints.remove(pluginId); // caller sets the new one
+		lastUpdates.put(pluginId, now);
+		if (old != null && old.equals(sorted))
+			return false;
+		if (old != null)
+			removeFromIndex(old);
+		pluginData.put(pluginId, sorted);
+		addToIndex(sorted);
+		return true;
+	}
+
+	/**
+	 * Drops a plugin's latest items until it has at most maxItems items taking at most maxBytes (see estimateSize())
+	 *
+	 * @return the number of items dropped
+	 */
+	public int trim(String pluginId, int maxItems, long maxBytes) {
+		List<AgendaItem> items = pluginData.get(pluginId);
+		if (items == null)
+			return 0;
+		int keep = 0;
+		long bytes = 0;
+		while (keep < items.size() && keep < maxItems) {
+			bytes += estimateSize(items.get(keep));
+			if (bytes > maxBytes)
+				break;
+			keep++;
+		}
+		if (keep == items.size())
+			return 0;
+
+		List<AgendaItem> dropped = items.subList(keep, items.size());
+		removeFromIndex(dropped);
+		HashMap<String, AgendaItem> ids = itemIds.get(pluginId);
+		if (ids != null) {
+			IdentityHashMap<AgendaItem, Boolean> droppedSet = new IdentityHashMap<AgendaItem, Boolean>();
+			for (AgendaItem item : dropped)
+				droppedSet.put(item, Boolean.TRUE);
+			Iterator<AgendaItem> it = ids.values().iterator();
+			while (it.hasNext())
+				if (droppedSet.containsKey(it.next()))
+					it.remove();
+		}
+		pluginData.put(pluginId, new ArrayList<AgendaItem>(items.subList(0, keep)));
+		return items.size() - keep;
+	}
+
+	/**
+	 * Gives the estimated memory (in bytes) a plugin's items take
+	 */
+	public long getRetainedBytes(String pluginId) {
+		long result = 0;
+		List<AgendaItem> items = pluginData.get(pluginId);
+		if (items != null)
+			for (AgendaItem item : items)
+				result += estimateSize(item);
+		return result;
+	}
+
+	/**
+	 * Estimates the memory (in bytes) an item takes
+	 */
+	public static long estimateSize(AgendaItem item) {
+		long result = ITEM_OVERHEAD;
+		if (item.line1 != null && item.line1.text != null)
+			result += 2 * item.line1.text.length();
+		if (item.line2 != null && item.line2.text != null)
+			result += 2 * item.line2.text.length();
+		return result;
+	}
+
+	/**
+	 * Remembers the fingerprint of the payload the plugin's items were just put() from. Until the plugin's items change otherwise, a payload with this fingerprint
+	 * can be dropped without reading it (see hasFingerprint())
+	 */
+	public void setFingerprint(String pluginId, long fingerprint) {
+		fingerprints.put(pluginId, fingerprint);
+	}
+
+	/**
+	 * Returns true iff the plugin's items were put() from a payload with this fingerprint (and haven't changed otherwise since)
+	 */
+	public boolean hasFingerprint(String pluginId, long fingerprint) {
+		Long known = fingerprints.get(pluginId);
+		return known != null && known == fingerprint;
+	}
+
+	/**
+	 * Changes single items of a plugin. Ids refer to items added by earlier updates since the plugin's last put() (items put() as a whole have no ids and are only
+	 * removed by clearing). Costs O(log n) per item plus moving the list's tail, instead of comparing the whole list
+	 *
+	 * @param now
+	 *            current time since epoch in ms. Items that are over aren't stored
+	 * @return false iff the plugin's items didn't change
+	 */
+	public boolean update(String pluginId, ItemUpdate update, long now) {
+		List<AgendaItem> old = pluginData.get(pluginId);
+		List<AgendaItem> items = old == null ? new ArrayList<AgendaItem>() : new ArrayList<AgendaItem>(old); // lists may have been handed out, so they're replaced instead of changed
+		HashMap<String, AgendaItem> ids = itemIds.get(pluginId);
+		if (ids == null)
+			ids = new HashMap<String, AgendaItem>();
+		boolean changed = false;
+
+		if (update.clear) {
+			changed = !items.isEmpty();
+			if (old != null)
+				removeFromIndex(old);
+			items.clear();
+			ids.clear();
+		}
+		for (String id : update.deletedIds)
+			changed |= removeSorted(items, ids.remove(id));
+		for (int i = 0; i < update.upsertIds.size(); i++) {
+			String id = update.upsertIds.get(i);
+			AgendaItem item = update.upsertItems.get(i);
+			AgendaItem previous = ids.get(id);
+			if (previous != null && previous.equals(item))
+				continue;
+			changed |= removeSorted(items, previous);
+			if (item == null || isOver(item, now)) {
+				ids.remove(id);
+				continue;
+			}
+			ids.put(id, item);
+			int position = Collections.binarySearch(items, item);
+			if (position < 0)
+				position = -position - 1;
+			while (position < items.size() && items.get(position).compareTo(item) == 0) // after equal items (like a stable sort)
+				position++;
+			items.add(position, item);
+			addToIndex(item);
+			changed = true;
+		}
+
+		itemIds.put(pluginId, ids);
+		fingerprints.remove(pluginId);
+		if (changed)
+			pluginData.put(pluginId, items);
+		touch(pluginId, now);
+		return changed;
+	}
+
+	/**
+	 * Removes the item (the same object) from the sorted list and the index
+	 *
+	 * @return false iff it wasn't in the list (e.g., null or dropped for being over)
+	 */
+	private boolean removeSorted(List<AgendaItem> items, AgendaItem item) {
+		if (item == null)
+			return false;
+		int position = Collections.binarySearch(items, item);
+		if (position < 0)
+			return false;
+		while (position > 0 && items.get(position - 1).compareTo(item) == 0) // to the first of the equal items
+			position--;
+		for (; position < items.size() && items.get(position).compareTo(item) == 0; position++) {
+			if (items.get(position) == item) {
+				items.remove(position);
+				removeFromIndex(item);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Records that the plugin reported without changing its items (e.g., sent the same data again), so they don't become stale
+	 *
+	 * @param now
+	 *            current time since epoch in ms
+	 */
+	public void touch(String pluginId, long now) {
+		if (pluginData.containsKey(pluginId))
+			lastUpdates.put(pluginId, now);
+	}
+
+	/**
+	 * Gives the time since epoch in ms the plugin last reported, or -1 if it has no data
+	 */
+	public long getLastUpdate(String pluginId) {
+		Long result = lastUpdates.get(pluginId);
+		return result == null ? -1 : result;
+	}
+
+	/**
+	 * Removes the items of plugins that haven't reported for longer than maxAge
+	 *
+	 * @param now
+	 *            current time since epoch in ms
+	 * @param maxAge
+	 *            in ms
+	 * @return ids of the plugins whose items were removed
+	 */
+	public List<String> removeStale(long now, long maxAge) {
+		List<String> result = new ArrayList<String>();
+		for (Map.Entry<String, Long> entry : lastUpdates.entrySet())
+			if (now - entry.getValue() > maxAge)
+				result.add(entry.getKey());
+		for (String pluginId : result)
+			remove(pluginId);
+		return result;
+	}
+
+	/**
+	 * Gives the ids of all plugins with data
+	 */
+	public List<String> getPluginIds() {
+		return new ArrayList<String>(pluginData.keySet());
+	}
+
+	/**
+	 * Gives a plugin's items (sorted, read only), or null if it has none
+	 */
+	public List<AgendaItem> get(String pluginId) {
+		return pluginData.get(pluginId);
+	}
+
+	public boolean containsPlugin(String pluginId) {
+		return pluginData.containsKey(pluginId);
+	}
+
+	/**
+	 * Removes a plugin's items
+	 */
+	public void remove(String pluginId) {
+		List<AgendaItem> old = pluginData.remove(pluginId);
+		if (old != null)
+			removeFromIndex(old);
+		itemIds.remove(pluginId);
+		fingerprints.remove(pluginId);
+		lastUpdates.remove(pluginId);
+	}
+
+	/**
+	 * Removes all items
+	 */
+	public void clear() {
+		pluginData.clear();
+		endTimes.clear();
+		itemIds.clear();
+		fingerprints.clear();
+		lastUpdates.clear();
+	}
+
+	public boolean isEmpty() {
+		return pluginData.isEmpty();
+	}
+
+	/**
+	 * Gives a copy of the plugin data (pluginId -> sorted items)
+	 */
+	public HashMap<String, List<AgendaItem>> toMap() {
+		return new HashMap<String, List<AgendaItem>>(pluginData);
+	}
+
+	/**
+	 * Gives a copy of the item ids (pluginId -> item id -> item) for plugins that added items by id
+	 */
+	public HashMap<String, HashMap<String, AgendaItem>> getItemIds() {
+		HashMap<String, HashMap<String, AgendaItem>> result = new HashMap<String, HashMap<String, AgendaItem>>();
+		for (Map.Entry<String, HashMap<String, AgendaItem>> entry : itemIds.entrySet())
+			if (!entry.getValue().isEmpty())
+				result.put(entry.getKey(), new HashMap<String, AgendaItem>(entry.getValue()));
+		return result;
+	}
+
+	/**
+	 * Merges the plugins' items into the list to send: sorted, without items that are over, trimmed to maxItems
+	 *
+	 * @param now
+	 *            current time since epoch in ms. Items that are over by then are dropped from the store (they only come back with new plugin data)
+	 */
+	public List<AgendaItem> getItemsToSend(long now, int maxItems) {
+		removeItemsOver(now);
+		return ItemMerger.merge(pluginData.values(), now, maxItems);
+	}
+
+	/**
+	 * Gives the next time the items to send change by themselves, i.e. when the first of them is over (and the next item moves into view)
+	 *
+	 * @param now
+	 *            current time since epoch in ms
+	 * @return time since epoch in ms, or -1 if the items only change with new data
+	 */
+	public long getNextChange(long now, int maxItems) {
+		long result = -1;
+		for (AgendaItem item : getItemsToSend(now, maxItems)) // items outside of the first maxItems don't matter until one of these is over
+			if (item.endTime != null && (result == -1 || item.endTime.getTime() < result))
+				result = item.endTime.getTime();
+		return result;
+	}
+
+	/**
+	 * Drops all items that are over (if the index says there are any)
+	 */
+	private void removeItemsOver(long now) {
+		if (endTimes.isEmpty() || endTimes.firstKey() > now)
+			return;
+
+		for (Map.Entry<String, List<AgendaItem>> entry : pluginData.entrySet()) {
+			List<AgendaItem> items = entry.getValue();
+			List<AgendaItem> remaining = null; // copy without the items that are over (created when the first one is found)
+			for (int i = 0; i < items.size(); i++) {
+				AgendaItem item = items.get(i);
+				if (isOver(item, now)) {
+					if (remaining == null)
+						remaining = new ArrayList<AgendaItem>(items.subList(0, i));
+				} else if (remaining != null)
+					remaining.add(item);
+			}
+			if (remaining != null)
+				entry.setValue(remaining); // lists may have been handed out, so they're replaced instead of changed
+		}
+		for (HashMap<String, AgendaItem> ids : itemIds.values()) {
+			Iterator<AgendaItem> it = ids.values().iterator();
+			while (it.hasNext())
+				if (isOver(it.next(), now))
+					it.remove();
+		}
+		endTimes.headMap(now, true).clear();
+	}
+
+	private static boolean isOver(AgendaItem item, long now) {
+		return item.endTime != null && item.endTime.getTime() <= now;
+	}
+
+	private void addToIndex(List<AgendaItem> items) {
+		for (AgendaItem item : items)
+			addToIndex(item);
+	}
+
+	private void addToIndex(AgendaItem item) {
+		if (item.endTime != null) {
+			Integer count = endTimes.get(item.endTime.getTime());
+			endTimes.put(item.endTime.getTime(), count == null ? 1 : count + 1);
+		}
+	}
+
+	private void removeFromIndex(List<AgendaItem> items) {
+		for (AgendaItem item : items)
+			removeFromIndex(item);
+	}
+
+	private void removeFromIndex(AgendaItem item) {
+		if (item.endTime != null) {
+			Integer count = endTimes.get(item.endTime.getTime());
+			if (count == null) // already dropped by removeItemsOver()
+				return;
+			if (count <= 1)
+				endTimes.remove(item.endTime.getTime());
+			else
+				endTimes.put(item.endTime.getTime(), count - 1);
+		}
+	}
+}
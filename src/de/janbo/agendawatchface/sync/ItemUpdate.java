@@ -0,0 +1,53 @@
+package de.janbo.agendawatchface.sync;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import de.janbo.agendawatchface.api.AgendaItem;
+
+/**
+ * Incremental change of a plugin's items, addressed by ids the plugin chose. Applied in order: clear, deletions, upserts (see ItemStore.update())
+ */
+public class ItemUpdate {
+	public boolean clear = false; // remove all of the plugin's items first
+	public List<String> deletedIds = new ArrayList<String>(); // ids of items to remove
+	public List<String> upsertIds = new ArrayList<String>(); // ids of items to add or replace, parallel to upsertItems
+	public List<AgendaItem> upsertItems = new ArrayList<AgendaItem>();
+
+	/**
+	 * Adds an item to add or replace
+	 */
+	public void upsert(String id, AgendaItem item) {
+		upsertIds.add(id);
+		upsertItems.add(item);
+	}
+
+	/**
+	 * Adds a later update to this one, so that applying the result equals applying both in order
+	 */
+	public void append(ItemUpdate later) {
+		if (later.clear) {
+			clear = true;
+			deletedIds.clear();
+			upsertIds.clear();
+			upsertItems.clear();
+		}
+
+		HashSet<String> overridden = new HashSet<String>(later.deletedIds); // ids our upserts must not set anymore
+		overridden.addAll(later.upsertIds);
+		for (int i = upsertIds.size() - 1; i >= 0; i--) {
+			if (overridden.contains(upsertIds.get(i))) {
+				upsertIds.remove(i);
+				upsertItems.remove(i);
+			}
+		}
+		deletedIds.addAll(later.deletedIds); // deletions are applied before upserts, so later upserts of deleted ids still win
+		upsertIds.addAll(later.upsertIds);
+		upsertItems.addAll(later.upsertItems);
+	}
+
+	public boolean isEmpty() {
+		return !clear && deletedIds.isEmpty() && upsertIds.isEmpty();
+	}
+}
@@ -0,0 +1,94 @@
+package de.janbo.agendawatchface.sync;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Computes a sequence of operations that transforms one list into another. Used to tell the watch how to get from the data it has to the data we want it to have
+ * (delta sync). Applying the operations in order to the old list yields the new list.
+ */
+public class ListDelta {
+	public static final int OP_REMOVE = 0; // remove the element at index (later elements shift left)
+	public static final int OP_INSERT = 1; // insert item at index (later elements shift right)
+	public static final int OP_UPDATE = 2; // replace the element at index by item
+	public static final int OP_MOVE = 3; // remove the element at fromIndex and insert it at index
+
+	/**
+	 * A single step of a delta
+	 */
+	public static class Operation<T> {
+		public final int type; // one of the OP_... constants
+		public final int index; // index the operation applies to
+		public final int fromIndex; // source index for OP_MOVE, -1 otherwise
+		public final T item; // new element for OP_INSERT and OP_UPDATE, null otherwise
+
+		public Operation(int type, int index, int fromIndex, T item) {
+			this.type = type;
+			this.index = index;
+			this.fromIndex = fromIndex;
+			this.item = item;
+		}
+	}
+
+	/**
+	 * Computes the operations transforming oldList into newList. Elements are compared using equals().
+	 *
+	 * @param oldList
+	 *            list the receiver currently has
+	 * @param newList
+	 *            list the receiver should have afterwards
+	 * @return list of operations to apply in order
+	 */
+	public static <T> List<Operation<T>> compute(List<T> oldList, List<T> newList) {
+		List<Operation<T>> ops = new ArrayList<Operation<T>>();
+		List<T> working = new ArrayList<T>(oldList); // simulates the receiver's list while applying ops
+
+		for (int i = 0; i < newList.size(); i++) {
+			T wanted = newList.get(i);
+			while (true) {
+				if (i < working.size() && equal(working.get(i), wanted)) // already in place
+					break;
+
+				if (i < working.size() && indexOf(newList, working.get(i), i + 1) == -1) { // current element at i is not needed anymore
+					if (i + 1 < working.size() && equal(working.get(i + 1), wanted)) { // removing it brings the wanted one in place
+						ops.add(new Operation<T>(OP_REMOVE, i, -1, null));
+						working.remove(i);
+						continue;
+					}
+					ops.add(new Operation<T>(OP_UPDATE, i, -1, wanted)); // overwrite it
+					working.set(i, wanted);
+					break;
+				}
+
+				int from = indexOf(working, wanted, i + 1);
+				if (from != -1) { // wanted element exists further down
+					ops.add(new Operation<T>(OP_MOVE, i, from, null));
+					working.add(i, working.remove(from));
+				} else {
+					ops.add(new Operation<T>(OP_INSERT, i, -1, wanted));
+					working.add(i, wanted);
+				}
+				break;
+			}
+		}
+
+		// Cut off whatever is left over
+		while (working.size() > newList.size()) {
+			ops.add(new Operation<T>(OP_REMOVE, working.size() - 1, -1, null));
+			working.remove(working.size() - 1);
+		}
+
+		return ops;
+	}
+
+	private static <T> int indexOf(List<T> list, T item, int startIndex) {
+		for (int i = startIndex; i < list.size(); i++)
+			if (equal(list.get(i), item))
+				return i;
+		return -1;
+	}
+
+	private static boolean equal(Object a, Object b) {
+		return a == null ? b == null : a.equals(b);
+	}
+}
@@ -0,0 +1,36 @@
+package de.janbo.agendawatchface.sync;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+/**
+ * Data class for a message on its way to the watch
+ */
+public class OutgoingMessage {
+	public PebbleDictionary data; // content of the message
+	public boolean ordered; // if true, the message is only sent after all earlier messages are acked, and later messages wait for its ack
+	public int numRetries = 0; // number of times we tried to resend this message
+	public long sentTime = -1; // time in ms the message was last sent
+	public Runnable ackTimeout = null; // scheduled while waiting for the ack or nack
+	public int itemIndex; // index of the (first) item the message is about, -1 if none (for the SyncTrace)
+	private int size = -1; // serialized size in bytes, -1 until getSize() computes it
+
+	public OutgoingMessage(PebbleDictionary data, boolean ordered) {
+		this(data, ordered, -1);
+	}
+
+	public OutgoingMessage(PebbleDictionary data, boolean ordered, int itemIndex) {
+		super();
+		this.data = data;
+		this.ordered = ordered;
+		this.itemIndex = itemIndex;
+	}
+
+	/**
+	 * Gives the size of the message as it is transmitted to the watch
+	 */
+	public int getSize() {
+		if (size == -1)
+			size = SyncEngine.getSerializedSize(data);
+		return size;
+	}
+}
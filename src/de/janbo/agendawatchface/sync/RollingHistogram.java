@@ -0,0 +1,96 @@
+package de.janbo.agendawatchface.sync;
+
+import java.util.Arrays;
+
+/**
+ * Histogram over the last values added (older values drop out of it). Bucket counts are kept up to date with every value, percentiles are computed from the
+ * values in the window
+ */
+public class RollingHistogram {
+	private final long[] bounds; // upper bound (exclusive) of every bucket but the last, ascending
+	private final int[] counts; // number of values in the window per bucket (one more than bounds)
+	private final long[] window; // ring buffer of the last values
+	private int next = 0; // index in window to put the next value
+	private int size = 0; // number of values in window
+	private long total = 0; // number of values ever added
+
+	/**
+	 * @param bounds
+	 *            upper bounds (exclusive) of the buckets, ascending. Values from the last bound upwards go into an extra bucket
+	 * @param windowSize
+	 *            number of values the histogram covers
+	 */
+	public RollingHistogram(long[] bounds, int windowSize) {
+		this.bounds = bounds.clone();
+		this.counts = new int[bounds.length + 1];
+		this.window = new long[windowSize];
+	}
+
+	public void add(long value) {
+		if (size == window.length)
+			counts[getBucket(window[next])]--; // oldest value drops out
+		else
+			size++;
+		window[next] = value;
+		counts[getBucket(value)]++;
+		next = (next + 1) % window.length;
+		total++;
+	}
+
+	private int getBucket(long value) {
+		int result = 0;
+		while (result < bounds.length && value >= bounds[result])
+			result++;
+		return result;
+	}
+
+	/**
+	 * Gives the value that p of the values in the window don't exceed (nearest rank), or -1 if the window is empty
+	 *
+	 * @param p
+	 *            between 0 and 1 (e.g. 0.5 for the median)
+	 */
+	public long getPercentile(double p) {
+		if (size == 0)
+			return -1;
+		long[] sorted = Arrays.copyOf(window, size); // the first size values are the window until it's full
+		Arrays.sort(sorted);
+		int rank = (int) Math.ceil(p * size) - 1;
+		return sorted[Math.max(0, Math.min(size - 1, rank))];
+	}
+
+	/**
+	 * Gives the largest value in the window, or -1 if it's empty
+	 */
+	public long getMax() {
+		long result = -1;
+		for (int i = 0; i < size; i++)
+			result = Math.max(result, window[i]);
+		return result;
+	}
+
+	/**
+	 * Gives the number of values in the window per bucket (see getBounds())
+	 */
+	public int[] getBucketCounts() {
+		return counts.clone();
+	}
+
+	public long[] getBounds() {
+		return bounds.clone();
+	}
+
+	/**
+	 * Gives the number of values in the window
+	 */
+	public int getCount() {
+		return size;
+	}
+
+	/**
+	 * Gives the number of values ever added
+	 */
+	public long getTotalCount() {
+		return total;
+	}
+}
@@ -0,0 +1,62 @@
+package de.janbo.agendawatchface.sync;
+
+import java.util.Random;
+
+/**
+ * Estimates the round trip time of messages to the watch from the time it takes for them to be acked (smoothed mean and deviation, like TCP) and derives
+ * retransmit timeouts from it
+ */
+public class RttEstimator {
+	public static final long INITIAL_TIMEOUT = 3000; // timeout (in ms) as long as there are no samples
+	public static final long MIN_TIMEOUT = 1000; // bounds for the timeout (in ms)
+	public static final long MAX_TIMEOUT = 30 * 1000;
+	public static final double JITTER = 0.25; // timeouts are randomly varied by up to this fraction (so that retries don't line up)
+
+	private long smoothedRtt = -1; // in ms, -1 if there are no samples yet
+	private long rttDeviation = 0; // in ms
+	private Random random = new Random();
+
+	/**
+	 * Adds a measured round trip time. Only use messages that have been sent once (for resent ones, it's unclear which transmission the ack belongs to)
+	 *
+	 * @param rtt
+	 *            time between sending and receiving the ack in ms
+	 */
+	public void addSample(long rtt) {
+		if (smoothedRtt < 0) {
+			smoothedRtt = rtt;
+			rttDeviation = rtt / 2;
+		} else {
+			rttDeviation = (3 * rttDeviation + Math.abs(smoothedRtt - rtt)) / 4;
+			smoothedRtt = (7 * smoothedRtt + rtt) / 8;
+		}
+	}
+
+	/**
+	 * Gives the timeout for a message (without jitter)
+	 *
+	 * @param attempt
+	 *            number of timeouts that already happened for the message. The timeout doubles with each one
+	 * @return timeout in ms
+	 */
+	public long getTimeout(int attempt) {
+		long timeout = smoothedRtt < 0 ? INITIAL_TIMEOUT : Math.max(MIN_TIMEOUT, smoothedRtt + 4 * rttDeviation);
+		return Math.min(MAX_TIMEOUT, timeout << Math.min(attempt, 16));
+	}
+
+	/**
+	 * Gives the timeout for a message, randomly varied by JITTER
+	 *
+	 * @see #getTimeout(int)
+	 */
+	public long getJitteredTimeout(int attempt) {
+		return (long) (getTimeout(attempt) * (1 - JITTER + 2 * JITTER * random.nextDouble()));
+	}
+
+	/**
+	 * Gives the smoothed round trip time in ms, or -1 if there are no samples yet
+	 */
+	public long getSmoothedRtt() {
+		return smoothedRtt;
+	}
+}
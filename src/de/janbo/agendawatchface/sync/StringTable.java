@@ -0,0 +1,110 @@
+package de.janbo.agendawatchface.sync;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Texts the watch keeps in numbered slots (for watchapps that understand PEBBLE_COMMAND_STRINGS). Texts used by several items are sent once and the items refer
+ * to their slot. The table is derived from the one the watch already has, so texts it knows don't cross the link again. Immutable once built
+ */
+public class StringTable {
+	public static final int CAPACITY = 64; // number of slots on the watch
+	public static final int MESSAGE_OVERHEAD = SyncEngine.DICT_HEADER_SIZE + SyncEngine.TUPLE_HEADER_SIZE + 1; // bytes of a STRINGS message besides its texts (header and command)
+
+	private final EncodedText[] slots = new EncodedText[CAPACITY]; // text in each slot, null if free
+	private final HashMap<String, Integer> slotOf = new HashMap<String, Integer>(); // text -> slot
+	private final List<Integer> addedSlots = new ArrayList<Integer>(); // slots the watch doesn't have yet (ascending)
+
+	private StringTable() {
+	}
+
+	/**
+	 * Builds the table for a sync of the given items. Texts of base that the items still use keep their slot. Other texts get a slot if sending them once and
+	 * referring to them is cheaper than sending them inline with every item (and if there's a free slot left). New texts are only added if all of them together
+	 * save more than the STRINGS message they need costs
+	 *
+	 * @param base
+	 *            the table the watch has, or null if it has none (after INIT_DATA)
+	 * @param items
+	 *            the items of the sync
+	 */
+	public static StringTable build(StringTable base, List<EncodedItem> items) {
+		HashMap<String, Integer> uses = new HashMap<String, Integer>();
+		for (EncodedItem item : items) {
+			countUse(uses, item.text1);
+			countUse(uses, item.text2);
+		}
+
+		StringTable result = new StringTable();
+		if (base != null) {
+			for (int i = 0; i < CAPACITY; i++)
+				if (base.slots[i] != null && uses.containsKey(base.slots[i].text))
+					result.put(i, base.slots[i]);
+		}
+
+		int freeSlot = 0;
+		int savings = 0; // bytes the added slots save, compared to sending their texts inline
+		fill: for (EncodedItem item : items) {
+			for (EncodedText text : new EncodedText[] { item.text1, item.text2 }) {
+				Integer count = uses.get(text.text);
+				if (count == null || result.slotOf.containsKey(text.text))
+					continue;
+				int inlineSize = count * text.getSerializedSize();
+				int tableSize = SyncEngine.TUPLE_HEADER_SIZE + text.getSerializedSize() + count * 1;
+				if (tableSize >= inlineSize)
+					continue;
+				while (freeSlot < CAPACITY && result.slots[freeSlot] != null)
+					freeSlot++;
+				if (freeSlot == CAPACITY) // table full, the rest stays inline
+					break fill;
+				result.put(freeSlot, text);
+				result.addedSlots.add(freeSlot);
+				savings += inlineSize - tableSize;
+			}
+		}
+
+		if (savings <= MESSAGE_OVERHEAD) { // not worth a STRINGS message
+			for (int slot : result.addedSlots) {
+				result.slotOf.remove(result.slots[slot].text);
+				result.slots[slot] = null;
+			}
+			result.addedSlots.clear();
+		}
+		return result;
+	}
+
+	private static void countUse(HashMap<String, Integer> uses, EncodedText text) {
+		if (text.utf8.length == 0) // nothing to save
+			return;
+		Integer count = uses.get(text.text);
+		uses.put(text.text, count == null ? 1 : count + 1);
+	}
+
+	private void put(int slot, EncodedText text) {
+		slots[slot] = text;
+		slotOf.put(text.text, slot);
+	}
+
+	/**
+	 * Gives the slot holding the text, or -1 if it is sent inline
+	 */
+	public int getSlot(EncodedText text) {
+		Integer slot = slotOf.get(text.text);
+		return slot == null ? -1 : slot;
+	}
+
+	/**
+	 * Gives the text in the slot, or null if it is free
+	 */
+	public EncodedText get(int slot) {
+		return slots[slot];
+	}
+
+	/**
+	 * Gives the slots that have to be sent to the watch (those that weren't in the base table)
+	 */
+	public List<Integer> getAddedSlots() {
+		return addedSlots;
+	}
+}
@@ -0,0 +1,1344 @@
+package de.janbo.agendawatchface.sync;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.zip.CRC32;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+import com.getpebble.android.kit.util.PebbleTuple;
+
+import de.janbo.agendawatchface.api.AgendaItem;
+
+/**
+ * The phone's side of the sync protocol with the watchapp. Decides what to send, encodes items, sends them through a WatchTransport and handles the watch's
+ * requests, acks and nacks. Plain Java: timers, settings and the items to send come from a SyncScheduler and a SyncHost.
+ * Not thread-safe. All methods must be called on the thread the SyncScheduler runs its tasks on.
+ */
+public class SyncEngine {
+	public static final byte CURRENT_WATCHAPP_VERSION_BUNDLED = 14; // bundled watchapp version
+	public static final byte CURRENT_WATCHAPP_VERSION_MINIMUM = 8; // smallest version of watchapp that is still supported
+	public static final byte WATCHAPP_VERSION_DELTA_SYNC = 15; // smallest version of watchapp that understands the PEBBLE_COMMAND_DELTA_... commands
+	public static final byte WATCHAPP_VERSION_PIPELINED_SYNC = 15; // smallest version of watchapp that accepts item messages while others are still in flight (older ones get one message at a time)
+	public static final byte WATCHAPP_VERSION_PACKED_ITEMS = 15; // smallest version of watchapp that understands PEBBLE_COMMAND_ITEMS_PACKED
+	public static final byte WATCHAPP_VERSION_HASHED_SYNC_ID = 15; // smallest version of watchapp that stores 32 bit sync ids (older ones get the fingerprint folded into a uint_8)
+	public static final byte WATCHAPP_VERSION_SETTINGS_MESSAGE = 15; // smallest version of watchapp that understands PEBBLE_COMMAND_SETTINGS
+	public static final byte WATCHAPP_VERSION_STRING_TABLE = 15; // smallest version of watchapp that understands PEBBLE_COMMAND_STRINGS and text references in ITEMS_PACKED messages
+
+	public static final int MAX_STRING_LEN_TO_SEND = 49; //how long (in bytes) may the strings be that we send to the watch?
+	public static final int MAX_TEXT_LEN_IN_ONE_MESSAGE = 39; // how many bytes of text may an item have to be sent in one message (if the watch doesn't report its inbox size)
+	public static final int DICT_HEADER_SIZE = 1; // serialized Pebble dictionaries start with the number of tuples
+	public static final int TUPLE_HEADER_SIZE = 7; // each tuple of a serialized Pebble dictionary starts with key (4 bytes), type (1) and length (2)
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	public static final int MAX_RETRIES = 2; // number of times a message is resent before the sync pauses
+	public static final long STALL_DELAY_INITIAL = 30 * 1000; // time to pause a sync (in ms) after a message used up its retries. Doubles with every further pause
+	public static final long STALL_DELAY_MAX = 15 * 60 * 1000;
+	public static final int MAX_SYNC_DELAY_FACTOR = 3; // a stream of changes delays the sync by at most this many quiet times (pref_sync_quiet_time) after the first change
+	public static final long SETTINGS_QUIET_TIME = 1500; // time to wait for further preference changes (in ms) before telling the watch. Combines rapid edits into one sync
+
+	// Protocol states
+	public static final int STATE_WAIT_FOR_WATCH_REQUEST = 0; // Nothing happening
+	public static final int STATE_INIT_SENT = 1; // First message (COMMAND_INIT_DATA) sent, waiting for ack
+	public static final int STATE_SENT_ITEM_WAIT_FOR_ACK = 2; // sending items (or delta operations), waiting for the watch to ack the ones in flight
+	public static final int STATE_SENT_DONE_MSG_WAIT_FOR_ACK = 4; // sent the done message, waiting for the watch to ack
+	public static final int STATE_RESTART_SYNC_ON_ACK = 5; // we were in the middle of a sync, but the watch wants a restart (act on this when receiving the next ack)
+	public static final int STATE_NO_NEW_DATA_MSG_SENT = 6; // we sent COMMAND_NO_NEW_DATA, waiting for ack
+	public static final int STATE_INITIAL_POPULATING_PLUGIN_DATA = 7; // the service is fresh and we don't have recent data available. Waiting for endWaitingForPluginData() to start the first sync
+	public static final int STATE_DELTA_BEGIN_SENT = 10; // First message of a delta sync (COMMAND_DELTA_BEGIN) sent, waiting for ack
+
+	// Pebble dictionary keys
+	public static final int PEBBLE_KEY_COMMAND = 0; // uint_8
+	public static final int PEBBLE_KEY_VERSION = 1; // uint_8, minimal watchapp version for syncing
+	public static final int PEBBLE_KEY_SYNC_ID = 2; // uint_32 (uint_8 for older watchapps), id for this particular sync. Fingerprint of the data the watch has after the sync
+	public static final int PEBBLE_KEY_NUM_ITEMS = 10; // uint_8
+	public static final int PEBBLE_KEY_ITEM_TEXT1 = 1; // String
+	public static final int PEBBLE_KEY_ITEM_TEXT2 = 2; // String
+	public static final int PEBBLE_KEY_ITEM_DESIGN1 = 3; // uint_8, format: 0 if row hidden. 0x02-0x08 TimeDisplayType, 0x10 countdown on/off, 0x12 bold text on/off
+	public static final int PEBBLE_KEY_ITEM_DESIGN2 = 4; // uint_8, format like DESIGN1
+	public static final int PEBBLE_KEY_ITEM_START_TIME = 20; // int_32, in format: minutes + 60*hours + 60*24*weekday + 60*24*7*dayOfMonth + 60*24*7*32*(month-1) + 60*24*7*32*12*(year-1900). Or 0 to
+																// simply show "today"
+	public static final int PEBBLE_KEY_ITEM_END_TIME = 30; // int_32 or 0 to make it never end
+	public static final int PEBBLE_KEY_ITEM_INDEX = 5; // uint_8, index numbering the items in a sync (0 being the first item)
+	public static final int PEBBLE_KEY_SETTINGS_BOOLFLAGS = 40; // uint_32
+	public static final int PEBBLE_KEY_VIBRATE = 6; //uint_8, if nonzero: instructs watch to vibrate according to pattern (PEBBLE_VIBRATE_... constants). Sent in DONE message
+	public static final int PEBBLE_KEY_DELTA_BASE_SYNC_ID = 11; // uint_32, sync id the watch's data must have for the delta to apply. Sent in DELTA_BEGIN message
+	public static final int PEBBLE_KEY_ITEM_FROM_INDEX = 12; // uint_8, index of the item to move. Sent in DELTA_MOVE message
+	public static final int PEBBLE_KEY_PACKED_ITEMS_BASE = 100; // first key of the first item in an ITEMS_PACKED message. The item in slot n uses keys BASE + n*STRIDE + PEBBLE_PACKED_OFFSET_...
+	public static final int PEBBLE_KEY_PACKED_ITEMS_STRIDE = 10; // number of keys reserved per slot in an ITEMS_PACKED message
+	public static final int PEBBLE_KEY_STRINGS_BASE = 1000; // String, key of the string table's slot 0 in a STRINGS message. Slot n uses key BASE + n
+
+	// Key offsets within a slot of an ITEMS_PACKED message. Values are formatted like the PEBBLE_KEY_ITEM_... counterparts
+	public static final int PEBBLE_PACKED_OFFSET_INDEX = 0;
+	public static final int PEBBLE_PACKED_OFFSET_TEXT1 = 1;
+	public static final int PEBBLE_PACKED_OFFSET_TEXT2 = 2;
+	public static final int PEBBLE_PACKED_OFFSET_DESIGN1 = 3;
+	public static final int PEBBLE_PACKED_OFFSET_DESIGN2 = 4;
+	public static final int PEBBLE_PACKED_OFFSET_START_TIME = 5;
+	public static final int PEBBLE_PACKED_OFFSET_END_TIME = 6;
+	public static final int PEBBLE_PACKED_OFFSET_TEXT1_REF = 7; // uint_8, string table slot holding text 1. Sent instead of PEBBLE_PACKED_OFFSET_TEXT1
+	public static final int PEBBLE_PACKED_OFFSET_TEXT2_REF = 8; // uint_8, like TEXT1_REF
+
+	public static final int PEBBLE_TO_PHONE_KEY_VERSION = 0; // current version of the watchface
+	public static final int PEBBLE_TO_PHONE_KEY_VERSIONBACKWARD = 1; // version of bundled firmware that this app must have to support the watchface version
+	public static final int PEBBLE_TO_PHONE_KEY_LAST_SYNC_ID = 2; // id of the last sync that went through correctly according to watch (0 to force)
+	public static final int PEBBLE_TO_PHONE_KEY_INBOX_SIZE = 3; // size of the watchapp's AppMessage inbox in bytes (newer watchapps only)
+
+	// Pebble commands
+	public static final byte PEBBLE_COMMAND_ITEM = 1; //sending item in one message
+	public static final byte PEBBLE_COMMAND_ITEM_1 = 6; //sending first half of item
+	public static final byte PEBBLE_COMMAND_ITEM_2 = 7; //sending second half of item
+	public static final byte PEBBLE_COMMAND_INIT_DATA = 0;
+	public static final byte PEBBLE_COMMAND_DONE = 2;
+	public static final byte PEBBLE_COMMAND_NO_NEW_DATA = 4;
+	public static final byte PEBBLE_COMMAND_FORCE_REQUEST = 5; // requests the watch to send a request (to update version, etc.)
+	public static final byte PEBBLE_COMMAND_DELTA_BEGIN = 8; // like INIT_DATA, but the watch keeps its items and applies the following operations to them (ITEM messages overwrite the item at their index)
+	public static final byte PEBBLE_COMMAND_DELTA_REMOVE = 9; // removes the item at PEBBLE_KEY_ITEM_INDEX, later items move up
+	public static final byte PEBBLE_COMMAND_DELTA_INSERT = 10; // inserts an empty item at PEBBLE_KEY_ITEM_INDEX, later items move down. The item's content follows in ITEM messages
+	public static final byte PEBBLE_COMMAND_DELTA_MOVE = 11; // moves the item at PEBBLE_KEY_ITEM_FROM_INDEX to PEBBLE_KEY_ITEM_INDEX
+	public static final byte PEBBLE_COMMAND_ITEMS_PACKED = 12; // sending PEBBLE_KEY_NUM_ITEMS whole items in one message (keys PEBBLE_KEY_PACKED_ITEMS_BASE and following)
+	public static final byte PEBBLE_COMMAND_SETTINGS = 13; // replaces the watch's PEBBLE_KEY_SETTINGS_BOOLFLAGS and sets PEBBLE_KEY_SYNC_ID, keeping the items. Only applies if the watch has PEBBLE_KEY_DELTA_BASE_SYNC_ID (like DELTA_BEGIN). Sent instead of a sync without item changes
+	public static final byte PEBBLE_COMMAND_STRINGS = 14; // sets slots of the watch's string table (keys PEBBLE_KEY_STRINGS_BASE and following), other slots are kept. The watch keeps the table with its items, INIT_DATA clears it. References are resolved when the DONE message arrives
+
+	// Vibrate options
+	public static final byte PEBBLE_VIBRATE_NONE = 0;
+	public static final byte PEBBLE_VIBRATE_SHORT = 1;
+	public static final byte PEBBLE_VIBRATE_TWICE_SHORT = 2;
+	public static final byte PEBBLE_VIBRATE_LONG = 3;
+
+	// Surroundings
+	private WatchTransport transport;
+	private SyncScheduler scheduler;
+	private SyncHost host;
+	private volatile SyncSettings settings; // user's settings, replaced by settingsChanged()
+	private int settingsVersion = 0; // incremented whenever a settings (or time zone) change changes how items are encoded
+	private String encodingTimezone = null; // id of the default time zone the cached encodings were computed in
+
+	// Variables
+	private int state = STATE_INITIAL_POPULATING_PLUGIN_DATA;
+	private int currentIndex = -1; // index of the next message in syncMessages to send
+	private List<AgendaItem> itemsToSend = null; // data we're currently sending to the watch
+	private List<EncodedItem> encodedItemsToSend = null; // itemsToSend, encoded
+	private IdentityHashMap<AgendaItem, EncodedItem> encodedItems = new IdentityHashMap<AgendaItem, EncodedItem>(); // encodings of the items of the last sync (see encodeItems())
+	private EncodedItemCache encodedItemCache = new EncodedItemCache(EncodedItemCache.DEFAULT_CAPACITY); // encodings of recently seen items by content
+	private List<OutgoingMessage> syncMessages = null; // messages making up the current sync (between INIT_DATA/DELTA_BEGIN and DONE)
+	private int currentSyncId = 0; // id of the current sync process (fingerprint of the data sent, see computeSyncId())
+	private List<AgendaItem> itemsSuccessfullySent = null; // last list we sent completely (DONE message). Data corresponds to lastSuccessfulSyncId below
+	private List<EncodedItem> encodedItemsSuccessfullySent = null; // itemsSuccessfullySent as the watch has them (designs may differ from encoding them now). null if unknown (see getEncodedItemsSuccessfullySent())
+	private SyncSettings restoredSettings = null; // settings when restoreState() was called, while encodedItemsSuccessfullySent is still unknown
+	private StringTable currentStringTable = null; // string table of the current sync, null if the watch doesn't use one
+	private StringTable stringTableSuccessfullySent = null; // string table the watch has after the last sync that went through, null if unknown (then no slot is assumed to be on the watch)
+	private int lastSuccessfulSyncId = 0; // id that we gave the watchface for the last sync that went through (DONE message) (used for checking for new data) - 0 means "don't know, send anyway!"
+	private int lastWatchReportedSyncId = 0; // the newest sync id reported by the watch in a request
+	private boolean vibrate_on_next_done = false; // if set to true, will instruct watch to vibrate after sync. It's auto-reset after that.
+	private boolean syncQueued = false; // if set to true, data changed during a sync. Another sync follows when the current one ends
+	private long firstUnsyncedChange = -1; // time since epoch in ms of the first change scheduleSync() is waiting with, or -1 if there is none
+
+	private HashMap<Integer, OutgoingMessage> flyingMessages = new HashMap<Integer, OutgoingMessage>(); // maps transaction id -> message sent but not acked yet. Used for retries
+	private int lastTransactionId = -1; // id of the transaction last sent.
+	private RttEstimator rttEstimator = new RttEstimator(); // derives resend delays and ack timeouts from the acks' timing
+	private long stallDelay = STALL_DELAY_INITIAL; // time to pause the sync when the next message uses up its retries
+
+	// Statistics
+	private SyncStats stats = new SyncStats(); // what the syncs cost
+	private SyncTrace trace = new SyncTrace(SyncTrace.DEFAULT_CAPACITY); // recent protocol events, for post-mortem analysis
+
+	private int watchfaceVersion = -1; // last version the watchface reported
+	private int watchInboxSize = -1; // inbox size (in bytes) the watchface reported, or -1 if unknown
+	private long lastSync = -1; // time since epoch in ms where last sync went through
+
+	public SyncEngine(WatchTransport transport, SyncScheduler scheduler, SyncHost host) {
+		super();
+		this.transport = transport;
+		this.scheduler = scheduler;
+		this.host = host;
+		this.settings = new SyncSettings(host);
+	}
+
+	/**
+	 * Reads the user's settings from the host again. Must be called whenever they change (e.g., from an OnSharedPreferenceChangeListener), the engine doesn't
+	 * read them otherwise
+	 */
+	public void settingsChanged() {
+		SyncSettings oldSettings = settings;
+		SyncSettings newSettings = new SyncSettings(host);
+		if (!newSettings.hasSameItemEncoding(oldSettings)) {
+			settingsVersion++; // cached encodings are outdated
+			encodedItemCache.clear();
+		}
+		settings = newSettings;
+
+		if (newSettings.affectsWatch(oldSettings)) { // tell the watch once the user is done editing (a sync without item changes only sends a SETTINGS message)
+			scheduler.removeCallbacks(scheduledSync);
+			scheduler.postDelayed(scheduledSync, Math.max(SETTINGS_QUIET_TIME, newSettings.getSyncQuietTime()));
+		}
+	}
+
+	/**
+	 * Gives the snapshot of the user's settings the engine currently works with
+	 */
+	public SyncSettings getSettings() {
+		return settings;
+	}
+
+	/**
+	 * Restores what the watch has from an earlier run (e.g., a SyncStateSnapshot)
+	 *
+	 * @param itemsSuccessfullySent
+	 *            items the watch has, or null if unknown
+	 * @param lastSuccessfulSyncId
+	 *            id of the data the watch has
+	 * @param lastSync
+	 *            time since epoch in ms where that sync went through
+	 */
+	public void restoreState(List<AgendaItem> itemsSuccessfullySent, int lastSuccessfulSyncId, long lastSync) {
+		this.itemsSuccessfullySent = itemsSuccessfullySent;
+		this.encodedItemsSuccessfullySent = null; // computed when needed
+		this.stringTableSuccessfullySent = null; // not persisted. The next sync sends all texts it refers to again
+		this.restoredSettings = settings;
+		this.lastSuccessfulSyncId = itemsSuccessfullySent == null && watchfaceVersion < WATCHAPP_VERSION_HASHED_SYNC_ID ? 0 : lastSuccessfulSyncId;
+		this.lastWatchReportedSyncId = this.lastSuccessfulSyncId;
+		this.lastSync = lastSync;
+	}
+
+	/**
+	 * Stops answering the watch until endWaitingForPluginData() is called (because we don't have recent data)
+	 */
+	public void beginWaitingForPluginData() {
+		state = STATE_INITIAL_POPULATING_PLUGIN_DATA;
+	}
+
+	/**
+	 * Ends STATE_INITIAL_POPULATING_PLUGIN_DATA and starts the first sync (if still in that state)
+	 *
+	 * @return true iff we were waiting for plugin data
+	 */
+	public boolean endWaitingForPluginData() {
+		if (state != STATE_INITIAL_POPULATING_PLUGIN_DATA)
+			return false;
+		host.log("AgendaWatchfaceService", "Ending STATE_INITIAL_POPULATING_PLUGIN_DATA, starting watch sync");
+		state = STATE_WAIT_FOR_WATCH_REQUEST;
+		sendForceRequestMessage();
+		return true;
+	}
+
+	/**
+	 * Returns true iff we're waiting for plugin data before syncing
+	 */
+	public boolean isWaitingForPluginData() {
+		return state == STATE_INITIAL_POPULATING_PLUGIN_DATA;
+	}
+
+	/**
+	 * Makes the watch vibrate after the next successful sync
+	 */
+	public void requestVibration() {
+		vibrate_on_next_done = true;
+	}
+
+	/**
+	 * Schedules a sync for changed data. Changes arriving within the quiet time (pref_sync_quiet_time) are combined into one sync, but a steady stream of changes
+	 * doesn't delay it beyond MAX_SYNC_DELAY_FACTOR quiet times. A running sync is not interrupted, the changes follow in one sync after it
+	 */
+	public void scheduleSync() {
+		long now = scheduler.currentTimeMillis();
+		if (firstUnsyncedChange == -1)
+			firstUnsyncedChange = now;
+		long quietTime = settings.getSyncQuietTime();
+		long deadline = firstUnsyncedChange + MAX_SYNC_DELAY_FACTOR * quietTime;
+		scheduler.removeCallbacks(scheduledSync);
+		scheduler.postDelayed(scheduledSync, Math.max(0, Math.min(quietTime, deadline - now)));
+	}
+
+	/**
+	 * Starts the sync scheduled by scheduleSync() once the quiet time is over
+	 */
+	private Runnable scheduledSync = new Runnable() {
+		public void run() {
+			firstUnsyncedChange = -1;
+			if (state == STATE_WAIT_FOR_WATCH_REQUEST || state == STATE_INITIAL_POPULATING_PLUGIN_DATA)
+				doWatchSyncOnChanges();
+			else {
+				host.log("AgendaWatchfaceService", "Data changed during sync. Syncing again afterwards");
+				syncQueued = true;
+			}
+		}
+	};
+
+	/**
+	 * Cancels pending timers
+	 */
+	public void shutdown() {
+		scheduler.removeCallbacks(scheduledSync);
+	}
+
+	/**
+	 * Checks a message from the watch and acts accordingly
+	 */
+	public void handleWatchMessage(PebbleDictionary data) {
+		watchRequestReceived(data.getInteger(PEBBLE_TO_PHONE_KEY_VERSION), data.contains(PEBBLE_TO_PHONE_KEY_VERSIONBACKWARD) ? data.getInteger(PEBBLE_TO_PHONE_KEY_VERSIONBACKWARD) : 4,
+				data.contains(PEBBLE_TO_PHONE_KEY_LAST_SYNC_ID) ? data.getUnsignedInteger(PEBBLE_TO_PHONE_KEY_LAST_SYNC_ID).intValue() : 0,
+				data.contains(PEBBLE_TO_PHONE_KEY_INBOX_SIZE) ? data.getUnsignedInteger(PEBBLE_TO_PHONE_KEY_INBOX_SIZE) : null);
+	}
+
+	/**
+	 * Pebble got our last message. Send next one according to current state
+	 *
+	 * @param transactionId
+	 */
+	public void ackReceived(int transactionId) {
+		OutgoingMessage message = flyingMessages.remove(transactionId);
+		if (message == null) {
+			trace(SyncTrace.EVENT_ACK_UNEXPECTED, transactionId, -1, 0);
+			return;
+		}
+		trace(SyncTrace.EVENT_ACK, transactionId, message.itemIndex, (int) (scheduler.currentTimeMillis() - message.sentTime));
+		scheduler.removeCallbacks(message.ackTimeout);
+		if (message.numRetries == 0)
+			rttEstimator.addSample(scheduler.currentTimeMillis() - message.sentTime);
+		stallDelay = STALL_DELAY_INITIAL; // the connection works
+		if (state == STATE_SENT_ITEM_WAIT_FOR_ACK) { // ack was for item or delta operation. Send next ones
+			sendNextSyncMessages();
+			return;
+		}
+		if (!flyingMessages.isEmpty()) // the other states continue only after everything sent has been acked
+			return;
+
+		switch (state) {
+		case STATE_RESTART_SYNC_ON_ACK: //TODO recheck if this state is needed
+			forceSync();
+			break;
+		case STATE_WAIT_FOR_WATCH_REQUEST: // we're not expecting an ack
+			break;
+		case STATE_NO_NEW_DATA_MSG_SENT:
+			state = STATE_WAIT_FOR_WATCH_REQUEST;
+			stats.syncCompleted(scheduler.currentTimeMillis());
+			trace(SyncTrace.EVENT_SYNC_COMPLETE, -1, -1, lastWatchReportedSyncId);
+			break;
+		case STATE_INIT_SENT: // message ack'd was the initial one. Start sending items
+			if (itemsToSend.size() == 0) { // nothing to do if no items to show
+				state = STATE_WAIT_FOR_WATCH_REQUEST;
+				break;
+			}
+			// fall through
+		case STATE_DELTA_BEGIN_SENT: // message ack'd was the delta begin. Start sending operations
+			currentIndex = 0;
+			state = STATE_SENT_ITEM_WAIT_FOR_ACK;
+			sendNextSyncMessages();
+			break;
+
+		case STATE_SENT_DONE_MSG_WAIT_FOR_ACK: // ack was for done message. This concludes the sync process
+			state = STATE_WAIT_FOR_WATCH_REQUEST;
+			host.log("PebbleCommunication", "Sync complete :)");
+			lastSync = scheduler.currentTimeMillis();
+			lastSuccessfulSyncId = currentSyncId;
+			lastWatchReportedSyncId = currentSyncId; // the watch acked the DONE message, so this is the data it has now
+			itemsSuccessfullySent = itemsToSend;
+			encodedItemsSuccessfullySent = encodedItemsToSend;
+			stringTableSuccessfullySent = currentStringTable;
+			restoredSettings = null;
+			vibrate_on_next_done = false;
+			stats.syncCompleted(lastSync);
+			trace(SyncTrace.EVENT_SYNC_COMPLETE, -1, -1, currentSyncId);
+
+			host.onSyncCompleted();
+			host.onWatchInfoChanged();
+			break;
+		}
+
+		if (state == STATE_WAIT_FOR_WATCH_REQUEST && syncQueued) { // sync is over, but data changed in the meantime
+			host.log("PebbleCommunication", "Starting sync queued during the last one");
+			doWatchSyncOnChanges();
+		}
+	}
+
+	/**
+	 * Handle the watch requesting new data. Checks watchapp version, issues update prompt or starts sending data
+	 *
+	 * @param version
+	 *            version of the watchface
+	 * @param minVersion
+	 *            version the watchface expects of this app (bundled watchface version)
+	 * @param reportedSyncId
+	 *            id the watch reports that its synced data has
+	 * @param inboxSize
+	 *            size of the watch's inbox in bytes (or null if not reported)
+	 */
+	private void watchRequestReceived(Long version, Long minVersion, int reportedSyncId, Long inboxSize) {
+		host.log("PebbleCommunication", "Received sync request in state " + state + " for version " + version + ", watch reports having data id " + reportedSyncId);
+		trace(SyncTrace.EVENT_WATCH_REQUEST, -1, version == null ? -1 : version.intValue(), reportedSyncId);
+		lastWatchReportedSyncId = reportedSyncId;
+		watchInboxSize = inboxSize == null ? -1 : inboxSize.intValue();
+		watchfaceVersion = version == null ? -1 : version.intValue(); // before syncing, the sync depends on it
+		if (state == STATE_INITIAL_POPULATING_PLUGIN_DATA) { // ignore watch request for the time being
+			host.log("AgendaWatchfaceService", "Ignoring watch request since we're waiting for initial plugin data");
+			return;
+		}
+
+		if (minVersion == null || minVersion > CURRENT_WATCHAPP_VERSION_BUNDLED) { // watchface expects newer Android app
+			host.onAndroidAppOutdated();
+			state = STATE_WAIT_FOR_WATCH_REQUEST;
+		} else if (version == null || version < CURRENT_WATCHAPP_VERSION_MINIMUM) { // watchface very outdated
+			host.onWatchappOutdated(true);
+			state = STATE_WAIT_FOR_WATCH_REQUEST;
+		} else {
+			// everything good. Give the watch its data :)
+			if (state == STATE_WAIT_FOR_WATCH_REQUEST) // expecting request or watch is very persistent in requesting the restart...
+				doWatchSyncOnChanges();
+			else {
+				host.log("PebbleCommunication", "Restart request during sync. Restarting");
+				state = STATE_WAIT_FOR_WATCH_REQUEST; // restart the whole thing
+				doWatchSyncOnChanges();
+			}
+
+			//If the user wants to, also notify on new bundled version (even though the update did not break functionality)
+			if (version != null && version < CURRENT_WATCHAPP_VERSION_BUNDLED && settings.isNotifyOnUpdate())
+				host.onWatchappOutdated(false);
+		}
+
+		// Notify the activity if it's listening
+		host.onWatchInfoChanged();
+	}
+
+	/**
+	 * Handle nacks: resend if necessary
+	 *
+	 * @param transactionId
+	 */
+	public void nackReceived(final int transactionId) {
+		final OutgoingMessage message = flyingMessages.get(transactionId);
+		if (message != null) {
+			trace(SyncTrace.EVENT_NACK, transactionId, message.itemIndex, message.numRetries);
+			stats.nackReceived();
+			scheduler.removeCallbacks(message.ackTimeout);
+			messageFailed(transactionId, message, rttEstimator.getJitteredTimeout(message.numRetries));
+		} else {
+			trace(SyncTrace.EVENT_NACK_UNEXPECTED, transactionId, -1, 0);
+		}
+	}
+
+	/**
+	 * Handles a message that got neither ack nor nack in time
+	 *
+	 * @param transactionId
+	 *            the transaction the message was sent in
+	 * @param message
+	 *            the message
+	 */
+	private void ackTimedOut(int transactionId, OutgoingMessage message) {
+		if (flyingMessages.get(transactionId) != message) // acked in the meantime or sync has been restarted
+			return;
+		trace(SyncTrace.EVENT_ACK_TIMEOUT, transactionId, message.itemIndex, message.numRetries);
+		stats.ackTimedOut();
+		if (message.ordered && state == STATE_SENT_ITEM_WAIT_FOR_ACK) { // delta operation that the watch may have applied already. Applying it twice breaks the data
+			host.log("PebbleCommunication", "Lost track of delta operations. Restarting with a complete sync");
+			trace(SyncTrace.EVENT_DELTA_LOST, transactionId, message.itemIndex, 0);
+			host.onSyncFailed();
+			forceSync();
+			return;
+		}
+		messageFailed(transactionId, message, 0); // we've waited long enough already
+	}
+
+	/**
+	 * Schedules the resend of a message that didn't get through. If it used up its retries, a sync is paused (with exponential backoff) instead, other messages
+	 * are given up
+	 *
+	 * @param transactionId
+	 *            the transaction the message was sent in
+	 * @param message
+	 *            the message
+	 * @param delay
+	 *            time to wait before resending (in ms)
+	 */
+	private void messageFailed(final int transactionId, final OutgoingMessage message, long delay) {
+		if (message.numRetries < MAX_RETRIES) {
+			scheduler.postDelayed(new Runnable() {
+				public void run() {
+					resendMessage(transactionId, message, true);
+				}
+			}, delay);
+			return;
+		}
+
+		stats.retriesExhausted();
+		if (state == STATE_INIT_SENT || state == STATE_DELTA_BEGIN_SENT || state == STATE_SENT_ITEM_WAIT_FOR_ACK || state == STATE_SENT_DONE_MSG_WAIT_FOR_ACK) {
+			// Keep the sync's progress (and the message in flyingMessages, so that nothing overtakes it). Try again with fresh retries later
+			host.log("PebbleCommunication", "Retries exhausted in state " + state + ". Pausing sync for " + stallDelay + " ms");
+			trace(SyncTrace.EVENT_RETRIES_EXHAUSTED, transactionId, message.itemIndex, (int) stallDelay);
+			scheduler.postDelayed(new Runnable() {
+				public void run() {
+					resendMessage(transactionId, message, false);
+				}
+			}, stallDelay);
+			stallDelay = Math.min(STALL_DELAY_MAX, 2 * stallDelay);
+		} else {
+			host.log("PebbleCommunication", "Retries exhausted in state " + state + ". Giving up");
+			trace(SyncTrace.EVENT_RETRIES_EXHAUSTED, transactionId, message.itemIndex, -1);
+			flyingMessages.remove(transactionId);
+			state = STATE_WAIT_FOR_WATCH_REQUEST;
+			stats.syncAborted();
+			host.onSyncFailed();
+			if (syncQueued) { // data changed while this message was in flight. Try that sync once the connection had a pause
+				host.log("PebbleCommunication", "Starting sync queued during the failed message in " + stallDelay + " ms");
+				scheduler.removeCallbacks(scheduledSync);
+				scheduler.postDelayed(scheduledSync, stallDelay);
+				stallDelay = Math.min(STALL_DELAY_MAX, 2 * stallDelay);
+			}
+		}
+	}
+
+	/**
+	 * Resends a message that didn't get through (unless the sync has moved on in the meantime)
+	 *
+	 * @param transactionId
+	 *            the transaction that failed
+	 * @param message
+	 *            the message sent in that transaction
+	 * @param retry
+	 *            true to count this as a retry, false to start with fresh retries
+	 */
+	private void resendMessage(int transactionId, OutgoingMessage message, boolean retry) {
+		if (flyingMessages.get(transactionId) != message) // sync has been restarted (or the message has been acked late)
+			return;
+		flyingMessages.remove(transactionId);
+		stats.messageResent();
+		sendMessage(message, retry);
+	}
+
+	/**
+	 * Add user settings to a PebbleDictionary
+	 *
+	 * @param dict
+	 */
+	private void addPebbleSettings(PebbleDictionary dict) {
+		dict.addUint32(PEBBLE_KEY_SETTINGS_BOOLFLAGS, settings.getSettingsFlags());
+	}
+
+	/**
+	 * Encodes items in advance (e.g., when new plugin data arrives), so that the next sync finds them in the cache
+	 */
+	public void prepareItems(List<AgendaItem> items) {
+		checkEncodingTimezone();
+		for (AgendaItem item : items)
+			encodeItem(item);
+	}
+
+	/**
+	 * Gives the encodings of the items. Encodings of items that were part of the last sync are reused, the others are taken from the cache or computed
+	 */
+	List<EncodedItem> encodeItems(List<AgendaItem> items) {
+		checkEncodingTimezone();
+		IdentityHashMap<AgendaItem, EncodedItem> encoded = new IdentityHashMap<AgendaItem, EncodedItem>();
+		List<EncodedItem> result = new ArrayList<EncodedItem>(items.size());
+		for (AgendaItem item : items) {
+			EncodedItem e = encodedItems.get(item);
+			if (e == null || e.settingsVersion != settingsVersion)
+				e = encodeItem(item);
+			encoded.put(item, e);
+			result.add(e);
+		}
+		encodedItems = encoded; // forget items that aren't shown anymore
+		return result;
+	}
+
+	/**
+	 * Invalidates the cached encodings if the default time zone changed (times in pebble format may be local times)
+	 */
+	private void checkEncodingTimezone() {
+		String timezone = TimeZone.getDefault().getID();
+		if (!timezone.equals(encodingTimezone)) {
+			if (encodingTimezone != null) {
+				settingsVersion++;
+				encodedItemCache.clear();
+			}
+			encodingTimezone = timezone;
+		}
+	}
+
+	/**
+	 * Gives the encoding of an item from the cache, or computes (and caches) it
+	 */
+	EncodedItem encodeItem(AgendaItem item) {
+		EncodedItemCache.Key key = new EncodedItemCache.Key(item, settingsVersion);
+		EncodedItem result = encodedItemCache.get(key);
+		if (result == null) {
+			result = new EncodedItem(item.line1 == null ? EncodedText.EMPTY : EncodedText.encode(item.line1.text), item.line2 == null ? EncodedText.EMPTY
+					: EncodedText.encode(item.line2.text), item.line1 == null ? 0 : getPebbleDesign(item.line1, 1), item.line2 == null ? 0 : getPebbleDesign(
+					item.line2, 2), item.getStartTimeInPebbleFormat(), item.getEndTimeInPebbleFormat(), settingsVersion);
+			encodedItemCache.put(key, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Computes the id for a sync of the given items. It's a fingerprint of everything the watch gets to see: the items as they are encoded for the watch and the
+	 * settings. For watchapps that only store a uint_8 id, it's folded into 1..255.
+	 *
+	 * @return the sync id (never 0)
+	 */
+	int computeSyncId(List<EncodedItem> items) {
+		return computeSyncId(items, settings.getSettingsFlags());
+	}
+
+	/**
+	 * Computes the id for a sync of the given items with the given settings flags (see computeSyncId(List))
+	 */
+	private int computeSyncId(List<EncodedItem> items, int settingsFlags) {
+		CRC32 crc = new CRC32();
+		updateChecksum(crc, settingsFlags);
+		updateChecksum(crc, items.size());
+		for (EncodedItem e : items) {
+			crc.update(e.text1.utf8);
+			crc.update(0); // terminate string like on the wire
+			crc.update(e.text2.utf8);
+			crc.update(0);
+			crc.update(e.design1);
+			crc.update(e.design2);
+			updateChecksum(crc, e.startTime);
+			updateChecksum(crc, e.endTime);
+		}
+
+		int id = (int) crc.getValue();
+		if (watchfaceVersion < WATCHAPP_VERSION_HASHED_SYNC_ID)
+			id = (id ^ (id >>> 8) ^ (id >>> 16) ^ (id >>> 24)) & 0xFF;
+		return id == 0 ? 1 : id;
+	}
+
+	/**
+	 * Feeds the four bytes of value into the checksum
+	 */
+	private static void updateChecksum(CRC32 crc, int value) {
+		crc.update(value >>> 24);
+		crc.update(value >>> 16);
+		crc.update(value >>> 8);
+		crc.update(value);
+	}
+
+	/**
+	 * Kicks of a forced sync (giving the watch a complete dataset)
+	 */
+	public void forceSync() {
+		beginWatchSync(0);
+	}
+
+	/**
+	 * Checks if there are any changes in the current data and kicks of a sync iff this is the case
+	 */
+	public void doWatchSyncOnChanges() {
+		beginWatchSync(lastWatchReportedSyncId);
+	}
+
+	/**
+	 * Kicks off sync process by checking whether we have new data, and sending init message or noNewData message
+	 *
+	 * @param reportedSyncId
+	 *            id that the watch reported that it has (or 0 to force sync).
+	 */
+	private void beginWatchSync(int reportedSyncId) {
+		if (state == STATE_INITIAL_POPULATING_PLUGIN_DATA) {
+			host.log("AgendaWatchfaceService", "Almost wanted to start a sync, but we're still in the \"getting plugin data\" phase");
+			return;
+		}
+
+		if (state != STATE_WAIT_FOR_WATCH_REQUEST) {
+			host.log("PebbleCommunication", "Restarting sending of items");
+			trace(SyncTrace.EVENT_SYNC_RESTART, -1, -1, 0);
+		}
+
+		// Calculate what to send
+		long now = scheduler.currentTimeMillis();
+		itemsToSend = host.getItemsToSend(now);
+		encodedItemsToSend = encodeItems(itemsToSend);
+
+		currentIndex = -1;
+		clearFlyingMessages(); // acks for an earlier sync are of no interest anymore
+		syncQueued = false; // this sync covers all changes so far
+
+		// Check if we should report this data having been sent before
+		int syncId = computeSyncId(encodedItemsToSend);
+		boolean newData = true;
+		if (watchfaceVersion >= WATCHAPP_VERSION_HASHED_SYNC_ID) { // fingerprint is long enough to tell by itself
+			newData = reportedSyncId != syncId;
+		} else if (itemsSuccessfullySent != null && lastSuccessfulSyncId != 0 && reportedSyncId == lastSuccessfulSyncId) { // if so, Compare the version we're about to send to the last successful one
+			newData = !itemsSuccessfullySent.equals(itemsToSend) || syncId != lastSuccessfulSyncId;
+		}
+
+		if (newData) {
+			int baseSyncId = lastSuccessfulSyncId;
+			List<EncodedItem> deltaBase = canSyncDelta(reportedSyncId) ? getEncodedItemsSuccessfullySent() : null;
+			currentStringTable = usesStringTable() ? StringTable.build(stringTableSuccessfullySent, encodedItemsToSend) : null;
+			syncMessages = deltaBase != null ? createDeltaMessages(deltaBase, encodedItemsToSend, currentStringTable) : null;
+			currentSyncId = syncId;
+			lastWatchReportedSyncId = 0; // the watch's data is in flux until it acks the DONE message
+			if (syncMessages != null && syncMessages.isEmpty() && watchfaceVersion >= WATCHAPP_VERSION_SETTINGS_MESSAGE && !vibrate_on_next_done) { // only the settings changed
+				stats.syncStarted(SyncStats.SYNC_SETTINGS, now);
+				trace(SyncTrace.EVENT_SYNC_SETTINGS, -1, -1, currentSyncId);
+				sendSettingsMsg(currentSyncId, baseSyncId);
+				state = STATE_SENT_DONE_MSG_WAIT_FOR_ACK; // concludes the sync like a DONE message
+			} else if (syncMessages != null) {
+				stats.syncStarted(SyncStats.SYNC_DELTA, now);
+				trace(SyncTrace.EVENT_SYNC_DELTA, -1, itemsToSend.size(), currentSyncId);
+				sendDeltaBeginMsg(itemsToSend.size(), currentSyncId, baseSyncId);
+				state = STATE_DELTA_BEGIN_SENT;
+			} else {
+				stringTableSuccessfullySent = null; // INIT_DATA clears the watch's table
+				currentStringTable = buildFullSyncStringTable(encodedItemsToSend);
+				syncMessages = createItemMessages(encodedItemsToSend, currentStringTable);
+				stats.syncStarted(SyncStats.SYNC_FULL, now);
+				trace(SyncTrace.EVENT_SYNC_FULL, -1, itemsToSend.size(), currentSyncId);
+				sendInitDataMsg(itemsToSend.size(), currentSyncId);
+				state = STATE_INIT_SENT;
+			}
+		} else {
+			stats.syncStarted(SyncStats.SYNC_NO_NEW_DATA, now);
+			trace(SyncTrace.EVENT_NO_NEW_DATA, -1, -1, syncId);
+			sendNoNewDataMsg();
+			state = STATE_NO_NEW_DATA_MSG_SENT;
+		}
+	}
+
+	/**
+	 * Inform the watch that its dataset is up-to-date
+	 */
+	private void sendNoNewDataMsg() {
+		host.log("PebbleCommunication", "Informing watch that its dataset is up-to-date");
+		PebbleDictionary data = new PebbleDictionary();
+		data.addUint8(PEBBLE_KEY_COMMAND, PEBBLE_COMMAND_NO_NEW_DATA);
+		sendMessage(data);
+	}
+
+	/**
+	 * Sends init message.
+	 *
+	 * @param numberOfItems
+	 * @param syncId
+	 *            Id of this sync process to report to the watch
+	 */
+	private void sendInitDataMsg(int numberOfItems, int syncId) {
+		host.log("PebbleCommunication", "sending init message, advertising " + numberOfItems + " items and syncId " + syncId);
+		PebbleDictionary data = new PebbleDictionary();
+		data.addUint8(PEBBLE_KEY_COMMAND, PEBBLE_COMMAND_INIT_DATA); // command
+		data.addUint8(PEBBLE_KEY_NUM_ITEMS, (byte) numberOfItems); // number of items we will send
+		if (watchfaceVersion >= WATCHAPP_VERSION_HASHED_SYNC_ID)
+			data.addUint32(PEBBLE_KEY_SYNC_ID, syncId); // id of the data we're about to send (to compare against existing data)
+		else
+			data.addUint8(PEBBLE_KEY_SYNC_ID, (byte) syncId);
+		data.addUint8(PEBBLE_KEY_VERSION, CURRENT_WATCHAPP_VERSION_MINIMUM); // expected minimum watchapp version
+		addPebbleSettings(data); // general and design settings
+		sendMessage(data);
+	}
+
+	/**
+	 * Sends the first message of a delta sync.
+	 *
+	 * @param numberOfItems
+	 *            number of items the watch will have after applying the delta
+	 * @param syncId
+	 *            Id of this sync process to report to the watch
+	 * @param baseSyncId
+	 *            Id of the data the watch must have for the delta to apply
+	 */
+	private void sendDeltaBeginMsg(int numberOfItems, int syncId, int baseSyncId) {
+		host.log("PebbleCommunication", "sending delta begin message, advertising " + numberOfItems + " items, syncId " + syncId + " based on " + baseSyncId + ", " + syncMessages.size() + " messages to follow");
+		PebbleDictionary data = new PebbleDictionary();
+		data.addUint8(PEBBLE_KEY_COMMAND, PEBBLE_COMMAND_DELTA_BEGIN); // command
+		data.addUint8(PEBBLE_KEY_NUM_ITEMS, (byte) numberOfItems); // number of items after the delta has been applied
+		data.addUint32(PEBBLE_KEY_SYNC_ID, syncId); // id of the data after the delta has been applied
+		data.addUint32(PEBBLE_KEY_DELTA_BASE_SYNC_ID, baseSyncId); // id of the data the delta applies to
+		data.addUint8(PEBBLE_KEY_VERSION, WATCHAPP_VERSION_DELTA_SYNC); // expected minimum watchapp version
+		addPebbleSettings(data); // general and design settings
+		sendMessage(data);
+	}
+
+	/**
+	 * Sends the settings (and the new sync id) without touching the watch's items.
+	 *
+	 * @param syncId
+	 *            Id of the watch's data after the change
+	 * @param baseSyncId
+	 *            Id of the data the watch must have for the message to apply
+	 */
+	private void sendSettingsMsg(int syncId, int baseSyncId) {
+		host.log("PebbleCommunication", "sending settings message, syncId " + syncId + " based on " + baseSyncId);
+		PebbleDictionary data = new PebbleDictionary();
+		data.addUint8(PEBBLE_KEY_COMMAND, PEBBLE_COMMAND_SETTINGS); // command
+		data.addUint32(PEBBLE_KEY_SYNC_ID, syncId); // id of the data after the change
+		data.addUint32(PEBBLE_KEY_DELTA_BASE_SYNC_ID, baseSyncId); // id of the data the change applies to
+		addPebbleSettings(data); // general settings
+		sendMessage(data);
+	}
+
+	/**
+	 * Returns true iff we know what data the watch has, so that we can send it a delta instead of all items
+	 *
+	 * @param reportedSyncId
+	 *            id that the watch reported that it has (or 0 to force sync)
+	 */
+	private boolean canSyncDelta(int reportedSyncId) {
+		return watchfaceVersion >= WATCHAPP_VERSION_DELTA_SYNC && itemsSuccessfullySent != null && lastSuccessfulSyncId != 0 && reportedSyncId == lastSuccessfulSyncId;
+	}
+
+	/**
+	 * Returns true iff texts used by several items are sent in a string table (needs a watchapp that supports it and packs items)
+	 */
+	private boolean usesStringTable() {
+		return watchfaceVersion >= WATCHAPP_VERSION_STRING_TABLE && watchInboxSize > 0;
+	}
+
+	/**
+	 * Builds the string table for a complete sync of the items. The table's STRINGS messages may take more messages than its references save (e.g., if all items
+	 * fit into few messages anyway), so it is only used if the sync doesn't need more messages with it than without
+	 *
+	 * @return the table, or null if none is used
+	 */
+	private StringTable buildFullSyncStringTable(List<EncodedItem> items) {
+		if (!usesStringTable())
+			return null;
+		StringTable table = StringTable.build(null, items);
+		if (table.getAddedSlots().isEmpty() || createItemMessages(items, table).size() > createItemMessages(items, null).size())
+			return null;
+		return table;
+	}
+
+	/**
+	 * Gives the encodings the watch has for itemsSuccessfullySent. After restoreState() they are encoded again, which only gives the watch's encodings if the
+	 * settings didn't change in between (checked against the sync id)
+	 *
+	 * @return the encodings, or null if unknown
+	 */
+	private List<EncodedItem> getEncodedItemsSuccessfullySent() {
+		if (encodedItemsSuccessfullySent == null && itemsSuccessfullySent != null && restoredSettings != null && restoredSettings.hasSameItemEncoding(settings)) {
+			List<EncodedItem> encoded = new ArrayList<EncodedItem>(itemsSuccessfullySent.size());
+			for (AgendaItem item : itemsSuccessfullySent)
+				encoded.add(encodeItem(item));
+			if (computeSyncId(encoded, restoredSettings.getSettingsFlags()) == lastSuccessfulSyncId) {
+				encodedItemsSuccessfullySent = encoded;
+				restoredSettings = null;
+			} else
+				host.log("PebbleCommunication", "Watch's data was encoded with other settings, can't send delta");
+		}
+		return encodedItemsSuccessfullySent;
+	}
+
+	/**
+	 * Computes the messages that transform the watch's items from oldItems to newItems (to be sent between DELTA_BEGIN and DONE). Items are compared by their
+	 * encoding, so changed designs are sent as well
+	 *
+	 * @param table
+	 *            string table derived from the watch's one, or null if not used
+	 * @return the messages (empty if the watch has these items already), or null if a complete sync would need fewer messages
+	 */
+	private List<OutgoingMessage> createDeltaMessages(List<EncodedItem> oldItems, List<EncodedItem> newItems, StringTable table) {
+		List<OutgoingMessage> result = new ArrayList<OutgoingMessage>();
+		addStringMessages(result, table); // (only texts the watch doesn't have)
+		ItemMessagePacker packer = new ItemMessagePacker(result, table);
+		for (ListDelta.Operation<EncodedItem> op : ListDelta.compute(oldItems, newItems)) {
+			PebbleDictionary data = new PebbleDictionary();
+			if (op.type != ListDelta.OP_UPDATE)
+				packer.flush(); // items collected so far must arrive before the indices change
+			switch (op.type) {
+			case ListDelta.OP_REMOVE:
+				data.addUint8(PEBBLE_KEY_COMMAND, PEBBLE_COMMAND_DELTA_REMOVE);
+				data.addUint8(PEBBLE_KEY_ITEM_INDEX, (byte) op.index);
+				result.add(new OutgoingMessage(data, true, op.index)); // operations change indices, so they must not overtake other messages
+				break;
+			case ListDelta.OP_MOVE:
+				data.addUint8(PEBBLE_KEY_COMMAND, PEBBLE_COMMAND_DELTA_MOVE);
+				data.addUint8(PEBBLE_KEY_ITEM_INDEX, (byte) op.index);
+				data.addUint8(PEBBLE_KEY_ITEM_FROM_INDEX, (byte) op.fromIndex);
+				result.add(new OutgoingMessage(data, true, op.index)); // operations change indices, so they must not overtake other messages
+				break;
+			case ListDelta.OP_INSERT:
+				data.addUint8(PEBBLE_KEY_COMMAND, PEBBLE_COMMAND_DELTA_INSERT);
+				data.addUint8(PEBBLE_KEY_ITEM_INDEX, (byte) op.index);
+				result.add(new OutgoingMessage(data, true, op.index)); // operations change indices, so they must not overtake other messages
+				// fall through: the new slot is filled like an updated item
+			case ListDelta.OP_UPDATE:
+				packer.add(newItems.get(op.index), op.index); // index refers to newItems
+				break;
+			}
+		}
+		packer.flush();
+
+		// Compare against a complete sync (excluding INIT and DONE)
+		if (!result.isEmpty() && result.size() >= createItemMessages(newItems, table == null ? null : buildFullSyncStringTable(newItems)).size())
+			return null;
+
+		return result;
+	}
+
+	/**
+	 * Creates the messages for a complete sync of the given items (to be sent between INIT_DATA and DONE), without string table
+	 */
+	List<OutgoingMessage> createItemMessages(List<EncodedItem> items) {
+		return createItemMessages(items, null);
+	}
+
+	/**
+	 * Creates the messages for a complete sync of the given items (to be sent between INIT_DATA and DONE)
+	 *
+	 * @param table
+	 *            string table built for the items (from scratch), or null if not used
+	 */
+	List<OutgoingMessage> createItemMessages(List<EncodedItem> items, StringTable table) {
+		List<OutgoingMessage> result = new ArrayList<OutgoingMessage>();
+		addStringMessages(result, table);
+		ItemMessagePacker packer = new ItemMessagePacker(result, table);
+		for (int i = 0; i < items.size(); i++)
+			packer.add(items.get(i), i);
+		packer.flush();
+		return result;
+	}
+
+	/**
+	 * Adds STRINGS messages for the table's slots the watch doesn't have yet, each filled up to the watch's inbox size. References are resolved at the end of the
+	 * sync, so these may be sent in any order
+	 *
+	 * @param table
+	 *            the string table, or null if not used
+	 */
+	private void addStringMessages(List<OutgoingMessage> messages, StringTable table) {
+		if (table == null)
+			return;
+		PebbleDictionary current = null;
+		int currentSize = 0;
+		for (int slot : table.getAddedSlots()) {
+			int tupleSize = TUPLE_HEADER_SIZE + table.get(slot).getSerializedSize();
+			if (current != null && currentSize + tupleSize > watchInboxSize) { // message is full
+				messages.add(new OutgoingMessage(current, false));
+				current = null;
+			}
+			if (current == null) {
+				current = new PebbleDictionary();
+				current.addUint8(PEBBLE_KEY_COMMAND, PEBBLE_COMMAND_STRINGS);
+				currentSize = DICT_HEADER_SIZE + TUPLE_HEADER_SIZE + 1;
+			}
+			current.addString(PEBBLE_KEY_STRINGS_BASE + slot, table.get(slot).text);
+			currentSize += tupleSize;
+		}
+		if (current != null)
+			messages.add(new OutgoingMessage(current, false));
+	}
+
+	/**
+	 * Adds the message(s) that transmit an item to the list. Item messages carry their index, so they may be sent in any order.
+	 *
+	 * @param e the item to send
+	 * @param index the index in this sync
+	 */
+	private void addItemMessages(List<OutgoingMessage> messages, EncodedItem e, int index) {
+		if (canBeSentInOneMessage(e)) {
+			messages.add(new OutgoingMessage(createItemMessage(e, index), false, index));
+		} else {
+			messages.add(new OutgoingMessage(createFirstItemHalfMessage(e, index), false, index));
+			messages.add(new OutgoingMessage(createSecondItemHalfMessage(e, index), false, index));
+		}
+	}
+
+	/**
+	 * Collects items into ITEMS_PACKED messages, each filled with as many whole items as fit into the watch's inbox. Items that don't fit into a message on their own
+	 * (and all items for watchapps that don't support packing) are sent using addItemMessages(), as are single items whose plain ITEM message is no larger than the
+	 * packed one. Texts in the string table are sent as references
+	 */
+	private class ItemMessagePacker {
+		private List<OutgoingMessage> messages; // list to add the finished messages to
+		private boolean packing; // whether or not the watch supports ITEMS_PACKED messages
+		private StringTable table; // string table of the sync, or null if not used
+		private PebbleDictionary current = null; // message currently being filled
+		private int currentSize = 0; // serialized size of current
+		private int currentSlots = 0; // number of items in current
+		private int currentFirstIndex = -1; // index of the first item in current
+		private EncodedItem currentFirst = null; // first item in current
+
+		public ItemMessagePacker(List<OutgoingMessage> messages, StringTable table) {
+			this.messages = messages;
+			this.table = table;
+			this.packing = watchfaceVersion >= WATCHAPP_VERSION_PACKED_ITEMS && watchInboxSize > 0;
+		}
+
+		/**
+		 * Adds an item to the messages
+		 *
+		 * @param e the item to send
+		 * @param index the index in this sync
+		 */
+		public void add(EncodedItem encoded, int index) {
+			if (!packing) {
+				addItemMessages(messages, encoded, index);
+				return;
+			}
+
+			int text1Slot = table == null ? -1 : table.getSlot(encoded.text1);
+			int text2Slot = table == null ? -1 : table.getSlot(encoded.text2);
+			int slotSize = getItemTuplesSize(encoded) - getReferenceSavings(encoded.text1, text1Slot) - getReferenceSavings(encoded.text2, text2Slot);
+			if (current != null && currentSize + slotSize > watchInboxSize) // current message is full
+				flush();
+			if (current == null) {
+				int headerSize = DICT_HEADER_SIZE + 2 * (TUPLE_HEADER_SIZE + 1); // command and number of items
+				if (headerSize + slotSize > watchInboxSize) { // doesn't even fit on its own. Needs to be split
+					addItemMessages(messages, encoded, index);
+					return;
+				}
+				current = new PebbleDictionary();
+				current.addUint8(PEBBLE_KEY_COMMAND, PEBBLE_COMMAND_ITEMS_PACKED);
+				currentSize = headerSize;
+				currentSlots = 0;
+				currentFirstIndex = index;
+				currentFirst = encoded;
+			}
+
+			int base = PEBBLE_KEY_PACKED_ITEMS_BASE + currentSlots * PEBBLE_KEY_PACKED_ITEMS_STRIDE;
+			current.addUint8(base + PEBBLE_PACKED_OFFSET_INDEX, (byte) index);
+			if (text1Slot >= 0)
+				current.addUint8(base + PEBBLE_PACKED_OFFSET_TEXT1_REF, (byte) text1Slot);
+			else
+				current.addString(base + PEBBLE_PACKED_OFFSET_TEXT1, encoded.text1.text);
+			if (text2Slot >= 0)
+				current.addUint8(base + PEBBLE_PACKED_OFFSET_TEXT2_REF, (byte) text2Slot);
+			else
+				current.addString(base + PEBBLE_PACKED_OFFSET_TEXT2, encoded.text2.text);
+			current.addUint8(base + PEBBLE_PACKED_OFFSET_DESIGN1, encoded.design1);
+			current.addUint8(base + PEBBLE_PACKED_OFFSET_DESIGN2, encoded.design2);
+			current.addInt32(base + PEBBLE_PACKED_OFFSET_START_TIME, encoded.startTime);
+			current.addInt32(base + PEBBLE_PACKED_OFFSET_END_TIME, encoded.endTime);
+			currentSlots++;
+			currentSize += slotSize;
+		}
+
+		/**
+		 * Finishes the message currently being filled (if any)
+		 */
+		public void flush() {
+			if (current == null)
+				return;
+			current.addUint8(PEBBLE_KEY_NUM_ITEMS, (byte) currentSlots);
+			PebbleDictionary plain = currentSlots == 1 && canBeSentInOneMessage(currentFirst) ? createItemMessage(currentFirst, currentFirstIndex) : null;
+			if (plain != null && getSerializedSize(plain) <= getSerializedSize(current)) // packing a single item only adds the NUM_ITEMS tuple (unless it saves texts by reference)
+				messages.add(new OutgoingMessage(plain, false, currentFirstIndex));
+			else
+				messages.add(new OutgoingMessage(current, false, currentFirstIndex));
+			current = null;
+			currentFirst = null;
+		}
+	}
+
+	/**
+	 * Gives the size of the dictionary as it is transmitted to the watch
+	 */
+	public static int getSerializedSize(PebbleDictionary data) {
+		int size = DICT_HEADER_SIZE;
+		for (PebbleTuple tuple : data) {
+			size += TUPLE_HEADER_SIZE;
+			if (tuple.type == PebbleTuple.TupleType.STRING)
+				size += ((String) tuple.value).getBytes(UTF8).length + 1; // zero-terminated
+			else
+				size += tuple.length;
+		}
+		return size;
+	}
+
+	/**
+	 * Gives the serialized size of the tuples describing one item (index, texts, designs, times)
+	 */
+	private static int getItemTuplesSize(EncodedItem e) {
+		return 7 * TUPLE_HEADER_SIZE + 1 + e.text1.getSerializedSize() + e.text2.getSerializedSize() + 1 + 1 + 4 + 4;
+	}
+
+	/**
+	 * Gives the number of bytes saved by sending a reference (uint_8) instead of the text
+	 *
+	 * @param slot
+	 *            the text's slot in the string table, or -1 if it is sent inline
+	 */
+	private static int getReferenceSavings(EncodedText text, int slot) {
+		return slot < 0 ? 0 : text.getSerializedSize() - 1;
+	}
+
+	/**
+	 * Sends the next messages of syncMessages, keeping up to getWindowSize() of them in flight. Sends the done message once all of them have been acked
+	 */
+	private void sendNextSyncMessages() {
+		int windowSize = getWindowSize();
+		while (currentIndex < syncMessages.size() && flyingMessages.size() < windowSize) {
+			OutgoingMessage message = syncMessages.get(currentIndex);
+			if (!flyingMessages.isEmpty() && (message.ordered || isOrderedMessageFlying())) // ordered messages travel alone
+				break;
+			currentIndex++;
+			sendMessage(message, false);
+		}
+
+		if (currentIndex >= syncMessages.size() && flyingMessages.isEmpty()) {
+			sendDoneMessage();
+			state = STATE_SENT_DONE_MSG_WAIT_FOR_ACK;
+		}
+	}
+
+	/**
+	 * Returns true iff one of the messages not acked yet must not be overtaken
+	 */
+	private boolean isOrderedMessageFlying() {
+		for (OutgoingMessage message : flyingMessages.values())
+			if (message.ordered)
+				return true;
+		return false;
+	}
+
+	/**
+	 * Gives the number of messages that may be in flight at the same time during a sync
+	 */
+	private int getWindowSize() {
+		if (watchfaceVersion < WATCHAPP_VERSION_PIPELINED_SYNC) // older watchapps can only handle one message at a time
+			return 1;
+		return settings.getWindowSize();
+	}
+
+	/**
+	 * Returns true iff the item is small enough to safely send it in one message
+	 * @param e the event to send
+	 */
+	private boolean canBeSentInOneMessage(EncodedItem e) {
+		if (watchInboxSize <= 0) // don't know the inbox size. Be conservative
+			return e.text1.utf8.length + e.text2.utf8.length <= MAX_TEXT_LEN_IN_ONE_MESSAGE;
+		return DICT_HEADER_SIZE + TUPLE_HEADER_SIZE + 1 + getItemTuplesSize(e) <= watchInboxSize; // command + item
+	}
+
+	/**
+	 * Creates a message with the item
+	 *
+	 * @param encoded the item to send
+	 * @param index the index in this sync
+	 */
+	private PebbleDictionary createItemMessage(EncodedItem encoded, int index) {
+		PebbleDictionary data = new PebbleDictionary();
+		data.addUint8(PEBBLE_KEY_COMMAND, PEBBLE_COMMAND_ITEM); // command
+		data.addUint8(PEBBLE_KEY_ITEM_INDEX, (byte) index);
+		data.addString(PEBBLE_KEY_ITEM_TEXT1, encoded.text1.text);
+		data.addString(PEBBLE_KEY_ITEM_TEXT2, encoded.text2.text);
+		data.addUint8(PEBBLE_KEY_ITEM_DESIGN1, encoded.design1);
+		data.addUint8(PEBBLE_KEY_ITEM_DESIGN2, encoded.design2);
+		data.addInt32(PEBBLE_KEY_ITEM_START_TIME, encoded.startTime);
+		data.addInt32(PEBBLE_KEY_ITEM_END_TIME, encoded.endTime);
+		return data;
+	}
+
+	/**
+	 * Creates a message with the first half of an item
+	 * @param encoded the item to send
+	 * @param index the index in this sync
+	 */
+	private PebbleDictionary createFirstItemHalfMessage(EncodedItem encoded, int index) {
+		PebbleDictionary data = new PebbleDictionary();
+		data.addUint8(PEBBLE_KEY_COMMAND, PEBBLE_COMMAND_ITEM_1); // command
+		data.addUint8(PEBBLE_KEY_ITEM_INDEX, (byte) index);
+		data.addString(PEBBLE_KEY_ITEM_TEXT1, encoded.text1.text);
+		data.addUint8(PEBBLE_KEY_ITEM_DESIGN1, encoded.design1);
+		data.addInt32(PEBBLE_KEY_ITEM_START_TIME, encoded.startTime);
+		return data;
+	}
+
+	/**
+	 * Creates a message with the second half of an item
+	 * @param encoded the item to send
+	 * @param index the index in this sync
+	 */
+	private PebbleDictionary createSecondItemHalfMessage(EncodedItem encoded, int index) {
+		PebbleDictionary data = new PebbleDictionary();
+		data.addUint8(PEBBLE_KEY_COMMAND, PEBBLE_COMMAND_ITEM_2); // command
+		data.addUint8(PEBBLE_KEY_ITEM_INDEX, (byte) index);
+		data.addString(PEBBLE_KEY_ITEM_TEXT2, encoded.text2.text);
+		data.addUint8(PEBBLE_KEY_ITEM_DESIGN2, encoded.design2);
+		data.addInt32(PEBBLE_KEY_ITEM_END_TIME, encoded.endTime);
+		return data;
+	}
+
+	/**
+	 * Computes the design for the pebble
+	 *
+	 * @param line
+	 * @param linenum
+	 * @return
+	 */
+	byte getPebbleDesign(AgendaItem.Line line, int linenum) {
+		byte result = 1; // [sic!] to distinguish between hiding the line and simply all-zero settings
+
+		//Bold
+		if (line.textBold)
+			result |= 0x20;
+
+		//Overflow
+		result |= line.overflow.ordinal()*0x40;
+
+		//TimeDisplayType and countdown
+		SyncSettings settings = this.settings;
+		if (line.timeDisplay == null && line.timeShowCountdown == null) // the usual case: the user's defaults
+			result |= settings.getDefaultTimeDesign(linenum);
+		else
+			result |= SyncSettings.getTimeDesign(line.timeDisplay == null ? settings.getDefaultTimeDisplay(linenum) : line.timeDisplay,
+					line.timeShowCountdown == null ? settings.isDefaultShowCountdown() : line.timeShowCountdown);
+
+		return result;
+	}
+
+	/**
+	 * Send message that we're done with the sync
+	 */
+	private void sendDoneMessage() {
+		PebbleDictionary data2 = new PebbleDictionary();
+		data2.addUint8(PEBBLE_KEY_COMMAND, PEBBLE_COMMAND_DONE);
+		data2.addUint8(PEBBLE_KEY_VIBRATE, vibrate_on_next_done ? settings.getVibrateType() : PEBBLE_VIBRATE_NONE);
+		sendMessage(data2);
+	}
+
+	/**
+	 * Send message that we want the watch to request an update (e.g., to get to know its version)
+	 */
+	public void sendForceRequestMessage() {
+		PebbleDictionary data2 = new PebbleDictionary();
+		data2.addUint8(PEBBLE_KEY_COMMAND, PEBBLE_COMMAND_FORCE_REQUEST);
+		sendMessage(data2);
+	}
+
+	/**
+	 * Sends a single message to the watch. Later messages wait for its ack
+	 */
+	private void sendMessage(PebbleDictionary data) {
+		sendMessage(new OutgoingMessage(data, true), false);
+	}
+
+	/**
+	 * Sends data to the watch and waits for the ack (see ackTimedOut())
+	 *
+	 * @param resend
+	 *            whether or not this is a retry of a message that has been sent already
+	 */
+	private void sendMessage(final OutgoingMessage message, boolean resend) {
+		message.numRetries = resend ? message.numRetries + 1 : 0;
+
+		lastTransactionId = (lastTransactionId + 1) % 256; // new transaction
+		final int transactionId = lastTransactionId;
+		if (resend)
+			trace(SyncTrace.EVENT_RESEND, transactionId, message.itemIndex, message.numRetries);
+		else
+			trace(SyncTrace.EVENT_SEND, transactionId, message.itemIndex, message.getSize());
+		flyingMessages.put(transactionId, message);
+		message.sentTime = scheduler.currentTimeMillis();
+		message.ackTimeout = new Runnable() {
+			public void run() {
+				ackTimedOut(transactionId, message);
+			}
+		};
+		scheduler.postDelayed(message.ackTimeout, rttEstimator.getTimeout(message.numRetries + 1)); // acks may queue up behind others in the window, so be lenient
+		stats.messageSent(message.getSize());
+		transport.sendMessage(message.data, transactionId);
+	}
+
+	/**
+	 * Forgets all messages in flight
+	 */
+	private void clearFlyingMessages() {
+		for (OutgoingMessage message : flyingMessages.values())
+			scheduler.removeCallbacks(message.ackTimeout);
+		flyingMessages.clear();
+	}
+
+	/**
+	 * Gives the protocol state (one of the STATE_... constants)
+	 */
+	public int getState() {
+		return state;
+	}
+
+	/**
+	 * Gives the last version the watchapp reported, or -1 if unknown
+	 */
+	public int getWatchfaceVersion() {
+		return watchfaceVersion;
+	}
+
+	/**
+	 * Sets the watchapp's version (e.g., as reported in an earlier run)
+	 */
+	public void setWatchfaceVersion(int watchfaceVersion) {
+		this.watchfaceVersion = watchfaceVersion;
+	}
+
+	/**
+	 * Gives the time since epoch in ms where the last sync went through, or -1
+	 */
+	public long getLastSync() {
+		return lastSync;
+	}
+
+	/**
+	 * Gives the items the watch got in the last successful sync, or null if unknown
+	 */
+	public List<AgendaItem> getItemsSuccessfullySent() {
+		return itemsSuccessfullySent;
+	}
+
+	/**
+	 * Gives the id of the last successful sync (0 if unknown)
+	 */
+	public int getLastSuccessfulSyncId() {
+		return lastSuccessfulSyncId;
+	}
+
+	/**
+	 * Gives the smoothed round trip time of messages in ms, or -1 if unknown
+	 */
+	public long getSmoothedRtt() {
+		return rttEstimator.getSmoothedRtt();
+	}
+
+	/**
+	 * Gives the cache of item encodings (for its statistics)
+	 */
+	public EncodedItemCache getEncodedItemCache() {
+		return encodedItemCache;
+	}
+
+	/**
+	 * Records a protocol event in the trace (with the current time and state)
+	 */
+	private void trace(byte event, int transactionId, int itemIndex, int value) {
+		trace.record(scheduler.currentTimeMillis(), event, state, transactionId, itemIndex, value);
+	}
+
+	/**
+	 * Gives the trace of recent protocol events
+	 */
+	public SyncTrace getTrace() {
+		return trace;
+	}
+
+	/**
+	 * Gives the statistics about the syncs so far
+	 */
+	public SyncStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * Gives the number of messages resent
+	 */
+	public int getRetries() {
+		return stats.getRetries();
+	}
+
+	/**
+	 * Gives the number of messages that got neither ack nor nack in time
+	 */
+	public int getAckTimeouts() {
+		return stats.getAckTimeouts();
+	}
+
+	/**
+	 * Gives the number of times a message used up its retries (and the sync was paused or given up)
+	 */
+	public int getRetryExhaustions() {
+		return stats.getRetryExhaustions();
+	}
+}
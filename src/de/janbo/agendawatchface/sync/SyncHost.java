@@ -0,0 +1,61 @@
+package de.janbo.agendawatchface.sync;
+
+import java.util.List;
+
+import de.janbo.agendawatchface.api.AgendaItem;
+
+/**
+ * What the SyncEngine needs from its surroundings: the items to show, the user's settings, logging and notifications about the sync's progress
+ */
+public interface SyncHost {
+	/**
+	 * Gives the items the watch should show (sorted and trimmed to the number of items to send)
+	 *
+	 * @param now
+	 *            current time since epoch in ms. Items that ended before are not of interest anymore
+	 */
+	public List<AgendaItem> getItemsToSend(long now);
+
+	/**
+	 * Gives a String setting (like SharedPreferences.getString()). Settings are only read when the engine builds its SyncSettings
+	 */
+	public String getStringSetting(String key, String defaultValue);
+
+	/**
+	 * Gives a boolean setting (like SharedPreferences.getBoolean())
+	 */
+	public boolean getBooleanSetting(String key, boolean defaultValue);
+
+	/**
+	 * Logs a debug message
+	 */
+	public void log(String tag, String message);
+
+	/**
+	 * Called when the watch acked the DONE message of a sync
+	 */
+	public void onSyncCompleted();
+
+	/**
+	 * Called when a sync was given up or had to start over because the watch's data got out of step (e.g., to save the SyncTrace)
+	 */
+	public void onSyncFailed();
+
+	/**
+	 * Called when the watchapp's version or the last sync time may have changed
+	 */
+	public void onWatchInfoChanged();
+
+	/**
+	 * Called when the watchapp is older than the bundled one
+	 *
+	 * @param mandatoryUpgrade
+	 *            true iff the watchapp is too old to sync at all
+	 */
+	public void onWatchappOutdated(boolean mandatoryUpgrade);
+
+	/**
+	 * Called when the watchapp expects a newer version of this app
+	 */
+	public void onAndroidAppOutdated();
+}
@@ -0,0 +1,21 @@
+package de.janbo.agendawatchface.sync;
+
+/**
+ * Timers and clock used by the SyncEngine (e.g., a Handler on the sync thread, or a VirtualScheduler). Tasks must run on the thread the engine is used on
+ */
+public interface SyncScheduler {
+	/**
+	 * Runs r once after delayMillis ms
+	 */
+	public void postDelayed(Runnable r, long delayMillis);
+
+	/**
+	 * Removes pending runs of r
+	 */
+	public void removeCallbacks(Runnable r);
+
+	/**
+	 * Gives the current time since epoch in ms
+	 */
+	public long currentTimeMillis();
+}
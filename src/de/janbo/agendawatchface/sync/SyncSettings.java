@@ -0,0 +1,149 @@
+package de.janbo.agendawatchface.sync;
+
+import de.janbo.agendawatchface.api.TimeDisplayType;
+
+/**
+ * Immutable snapshot of the user's settings as far as the sync needs them. Everything is parsed once when the snapshot is created (on a preference change),
+ * so encoding items doesn't touch the preference store
+ */
+public class SyncSettings {
+	private final int settingsFlags; // as sent in PEBBLE_KEY_SETTINGS_BOOLFLAGS
+	private final TimeDisplayType[] defaultTimeDisplay; // per line number (index 1 and 2) for lines that don't specify it
+	private final boolean defaultShowCountdown; // for lines that don't specify it
+	private final byte[] defaultTimeDesign; // per line number: design bits for lines that specify neither time display nor countdown
+	private final byte vibrateType; // PEBBLE_VIBRATE_* to send with DONE messages that should vibrate
+	private final long syncQuietTime; // in ms
+	private final int windowSize; // messages in flight at the same time (for pipelining watchapps)
+	private final int numItemsToSend;
+	private final boolean notifyOnUpdate;
+
+	/**
+	 * Reads the settings from the host
+	 */
+	public SyncSettings(SyncHost host) {
+		int fontSize = Integer.parseInt(host.getStringSetting("pref_layout_font_size", "0"));
+		int headerTimeSize = Integer.parseInt(host.getStringSetting("pref_header_time_size", "1"));
+		defaultShowCountdown = host.getBooleanSetting("pref_layout_countdown", false);
+
+		int flags = 0;
+		flags |= host.getBooleanSetting("pref_show_header", true) ? 0x01 : 0; // constants are documented in the watchapp
+		flags |= host.getBooleanSetting("pref_12h", false) ? 0x02 : 0;
+		flags |= host.getBooleanSetting("pref_ampm", true) ? 0x04 : 0;
+		flags |= fontSize % 2 == 1 ? 0x20 : 0;
+		flags |= fontSize > 1 ? 0x40 : 0;
+		flags |= headerTimeSize % 2 == 1 ? 0x80 : 0;
+		flags |= headerTimeSize > 1 ? 0x100 : 0;
+		flags |= host.getBooleanSetting("pref_separator_date", false) ? 0x200 : 0;
+		flags |= host.getBooleanSetting("pref_enable_scroll", true) ? 0x400 : 0;
+		flags |= defaultShowCountdown ? 0x800 : 0;
+		flags |= host.getBooleanSetting("pref_continuous_scroll", false) ? 0x1000 : 0;
+		flags |= host.getBooleanSetting("pref_light_while_scrolling", false) ? 0x2000 : 0;
+		flags |= host.getBooleanSetting("pref_limit_persist", true) ? 0x4000 : 0;
+		flags |= host.getBooleanSetting("pref_invert_watchface", false) ? 0x8000 : 0;
+		settingsFlags = flags;
+
+		TimeDisplayType[] types = TimeDisplayType.values();
+		defaultTimeDisplay = new TimeDisplayType[3];
+		defaultTimeDesign = new byte[3];
+		for (int linenum = 1; linenum <= 2; linenum++) {
+			defaultTimeDisplay[linenum] = types[Integer.parseInt(host.getStringSetting("pref_layout_time_" + linenum, linenum == 1 ? "0" : "4"))];
+			defaultTimeDesign[linenum] = getTimeDesign(defaultTimeDisplay[linenum], defaultShowCountdown);
+		}
+
+		vibrateType = Byte.valueOf(host.getStringSetting("pref_vibrate_type", "1"));
+		syncQuietTime = Integer.parseInt(host.getStringSetting("pref_sync_quiet_time", "500"));
+		windowSize = Math.max(1, Integer.parseInt(host.getStringSetting("pref_send_window_size", "4")));
+		numItemsToSend = Integer.parseInt(host.getStringSetting("pref_send_num_items", "10"));
+		notifyOnUpdate = host.getBooleanSetting("pref_notify_on_update", true);
+	}
+
+	/**
+	 * Returns true iff items are encoded the same way with both settings (same designs)
+	 */
+	public boolean hasSameItemEncoding(SyncSettings other) {
+		return defaultShowCountdown == other.defaultShowCountdown && defaultTimeDisplay[1] == other.defaultTimeDisplay[1]
+				&& defaultTimeDisplay[2] == other.defaultTimeDisplay[2];
+	}
+
+	/**
+	 * Returns true iff the watch would show something different with these settings than with other (flags, item designs or number of items)
+	 */
+	public boolean affectsWatch(SyncSettings other) {
+		return settingsFlags != other.settingsFlags || numItemsToSend != other.numItemsToSend || !hasSameItemEncoding(other);
+	}
+
+	/**
+	 * Computes the part of a line's design that is about the time
+	 *
+	 * @param timeDisplay
+	 *            how to show the time (not null)
+	 * @param showCountdown
+	 *            whether to show a countdown instead of the time when it's near
+	 */
+	static byte getTimeDesign(TimeDisplayType timeDisplay, boolean showCountdown) {
+		int result = timeDisplay.ordinal() * 0x02;
+		if (timeDisplay != TimeDisplayType.NONE && showCountdown)
+			result |= 0x10;
+		return (byte) result;
+	}
+
+	/**
+	 * Gives the settings flags (as sent in PEBBLE_KEY_SETTINGS_BOOLFLAGS)
+	 */
+	public int getSettingsFlags() {
+		return settingsFlags;
+	}
+
+	/**
+	 * Gives the time display for lines that don't specify one
+	 *
+	 * @param linenum
+	 *            1 or 2
+	 */
+	public TimeDisplayType getDefaultTimeDisplay(int linenum) {
+		return defaultTimeDisplay[linenum];
+	}
+
+	/**
+	 * Gives whether lines that don't specify it show a countdown
+	 */
+	public boolean isDefaultShowCountdown() {
+		return defaultShowCountdown;
+	}
+
+	/**
+	 * Gives the time part of the design for lines that specify neither time display nor countdown
+	 *
+	 * @param linenum
+	 *            1 or 2
+	 */
+	public byte getDefaultTimeDesign(int linenum) {
+		return defaultTimeDesign[linenum];
+	}
+
+	public byte getVibrateType() {
+		return vibrateType;
+	}
+
+	/**
+	 * Gives the time to wait for further changes before syncing (in ms)
+	 */
+	public long getSyncQuietTime() {
+		return syncQuietTime;
+	}
+
+	/**
+	 * Gives the number of messages that may be in flight at the same time (for watchapps that support it)
+	 */
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	public int getNumItemsToSend() {
+		return numItemsToSend;
+	}
+
+	public boolean isNotifyOnUpdate() {
+		return notifyOnUpdate;
+	}
+}
@@ -0,0 +1,165 @@
+package de.janbo.agendawatchface.sync;
+
+/**
+ * Counters and rolling histograms describing what the syncs cost: latency, messages and bytes per sync, nacks, retries and aborted syncs. Filled by the
+ * SyncEngine
+ */
+public class SyncStats {
+	public static final int WINDOW_SIZE = 50; // number of syncs the histograms cover
+	private static final long[] LATENCY_BOUNDS = { 250, 500, 1000, 2000, 5000, 10000, 30000 }; // histogram buckets for the latency (ms)
+	private static final long[] MESSAGES_BOUNDS = { 2, 3, 5, 10, 20, 50 }; // histogram buckets for the messages per sync
+	private static final long[] BYTES_BOUNDS = { 100, 250, 500, 1000, 2500, 5000 }; // histogram buckets for the bytes per sync
+
+	// Kinds of syncs
+	public static final int SYNC_FULL = 0; // INIT_DATA, all items
+	public static final int SYNC_DELTA = 1; // DELTA_BEGIN and the changed items
+	public static final int SYNC_SETTINGS = 2; // SETTINGS message only
+	public static final int SYNC_NO_NEW_DATA = 3; // NO_NEW_DATA message only
+	public static final int NUM_SYNC_TYPES = 4;
+
+	private final RollingHistogram latency = new RollingHistogram(LATENCY_BOUNDS, WINDOW_SIZE); // ms from the first message to the last ack
+	private final RollingHistogram messagesPerSync = new RollingHistogram(MESSAGES_BOUNDS, WINDOW_SIZE); // including resent ones
+	private final RollingHistogram bytesPerSync = new RollingHistogram(BYTES_BOUNDS, WINDOW_SIZE);
+
+	private final int[] syncsCompleted = new int[NUM_SYNC_TYPES]; // per SYNC_... type
+	private int syncsAborted = 0; // syncs restarted or given up before they completed
+	private long messagesSent = 0; // all messages, including resent ones and those outside of syncs
+	private long bytesSent = 0;
+	private int nacks = 0;
+	private int retries = 0; // number of messages resent
+	private int ackTimeouts = 0; // number of messages that got neither ack nor nack in time
+	private int retryExhaustions = 0; // number of times a message used up its retries
+
+	// The sync in progress
+	private boolean syncRunning = false;
+	private int syncType;
+	private long syncStart; // time since epoch in ms
+	private int syncMessages;
+	private int syncBytes;
+
+	/**
+	 * Records the start of a sync. A sync still running is counted as aborted
+	 *
+	 * @param type
+	 *            one of the SYNC_... constants
+	 * @param now
+	 *            current time since epoch in ms
+	 */
+	void syncStarted(int type, long now) {
+		syncAborted();
+		syncRunning = true;
+		syncType = type;
+		syncStart = now;
+		syncMessages = 0;
+		syncBytes = 0;
+	}
+
+	/**
+	 * Records that the running sync went through (if any)
+	 */
+	void syncCompleted(long now) {
+		if (!syncRunning)
+			return;
+		syncRunning = false;
+		syncsCompleted[syncType]++;
+		latency.add(now - syncStart);
+		messagesPerSync.add(syncMessages);
+		bytesPerSync.add(syncBytes);
+	}
+
+	/**
+	 * Records that the running sync (if any) ended without completing
+	 */
+	void syncAborted() {
+		if (syncRunning)
+			syncsAborted++;
+		syncRunning = false;
+	}
+
+	/**
+	 * Records a message sent (or resent)
+	 *
+	 * @param size
+	 *            its serialized size (bytes)
+	 */
+	void messageSent(int size) {
+		messagesSent++;
+		bytesSent += size;
+		if (syncRunning) {
+			syncMessages++;
+			syncBytes += size;
+		}
+	}
+
+	void nackReceived() {
+		nacks++;
+	}
+
+	void messageResent() {
+		retries++;
+	}
+
+	void ackTimedOut() {
+		ackTimeouts++;
+	}
+
+	void retriesExhausted() {
+		retryExhaustions++;
+	}
+
+	/**
+	 * Gives the number of completed syncs of the given type (one of the SYNC_... constants)
+	 */
+	public int getSyncsCompleted(int type) {
+		return syncsCompleted[type];
+	}
+
+	public int getSyncsAborted() {
+		return syncsAborted;
+	}
+
+	public long getMessagesSent() {
+		return messagesSent;
+	}
+
+	public long getBytesSent() {
+		return bytesSent;
+	}
+
+	public int getNacks() {
+		return nacks;
+	}
+
+	public int getRetries() {
+		return retries;
+	}
+
+	public int getAckTimeouts() {
+		return ackTimeouts;
+	}
+
+	public int getRetryExhaustions() {
+		return retryExhaustions;
+	}
+
+	/**
+	 * Gives the latencies (in ms) of the last completed syncs
+	 */
+	public RollingHistogram getLatency() {
+		return latency;
+	}
+
+	/**
+	 * Gives the number of messages of the last completed syncs
+	 */
+	public RollingHistogram getMessagesPerSync() {
+		return messagesPerSync;
+	}
+
+	/**
+	 * Gives the number of bytes of the last completed syncs
+	 */
+	public RollingHistogram getBytesPerSync() {
+		return bytesPerSync;
+	}
+}
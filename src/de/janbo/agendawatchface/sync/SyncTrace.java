@@ -0,0 +1,103 @@
+package de.janbo.agendawatchface.sync;
+
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Fixed-size ring buffer of protocol events (sends, acks, nacks, timeouts, syncs), kept in primitive arrays so that recording an event doesn't allocate. Replaces
+ * debug logging on the hot path. Turned into text only when dumped (e.g., via dumpsys or after a failed sync)
+ */
+public class SyncTrace {
+	public static final int DEFAULT_CAPACITY = 1024; // number of events to keep
+
+	// Event types. Meaning of index and value in the comments
+	public static final byte EVENT_SEND = 1; // index: first item in the message or -1, value: size in bytes
+	public static final byte EVENT_RESEND = 2; // index: like SEND, value: retry number
+	public static final byte EVENT_ACK = 3; // index: like SEND, value: round trip time in ms
+	public static final byte EVENT_ACK_UNEXPECTED = 4; // ack for a transaction we don't wait for (anymore)
+	public static final byte EVENT_NACK = 5; // index: like SEND, value: retries so far
+	public static final byte EVENT_NACK_UNEXPECTED = 6;
+	public static final byte EVENT_ACK_TIMEOUT = 7; // index: like SEND, value: retries so far
+	public static final byte EVENT_RETRIES_EXHAUSTED = 8; // value: time the sync pauses (ms), or -1 if the message is given up
+	public static final byte EVENT_WATCH_REQUEST = 9; // index: watchapp version, value: sync id the watch reported
+	public static final byte EVENT_SYNC_FULL = 10; // index: number of items, value: sync id
+	public static final byte EVENT_SYNC_DELTA = 11; // index: number of items, value: sync id
+	public static final byte EVENT_SYNC_SETTINGS = 12; // value: sync id
+	public static final byte EVENT_NO_NEW_DATA = 13; // value: sync id
+	public static final byte EVENT_SYNC_COMPLETE = 14; // value: sync id
+	public static final byte EVENT_SYNC_RESTART = 15; // a new sync begins before the last one completed
+	public static final byte EVENT_DELTA_LOST = 16; // lost track of a delta operation, restarting with a complete sync
+
+	private static final String[] EVENT_NAMES = { "?", "send", "resend", "ack", "ack?", "nack", "nack?", "timeout", "exhausted", "request", "full", "delta",
+			"settings", "nonew", "complete", "restart", "deltalost" };
+
+	private final long[] times; // ms since epoch
+	private final byte[] events; // EVENT_... constants
+	private final byte[] states; // SyncEngine.STATE_... at the time of the event
+	private final short[] transactionIds; // -1 if none
+	private final short[] itemIndices; // -1 if none
+	private final int[] values;
+	private int next = 0; // slot to write the next event to
+	private long count = 0; // number of events ever recorded
+
+	public SyncTrace(int capacity) {
+		times = new long[capacity];
+		events = new byte[capacity];
+		states = new byte[capacity];
+		transactionIds = new short[capacity];
+		itemIndices = new short[capacity];
+		values = new int[capacity];
+	}
+
+	/**
+	 * Records an event, overwriting the oldest one if the buffer is full
+	 *
+	 * @param time
+	 *            ms since epoch
+	 * @param event
+	 *            one of the EVENT_... constants
+	 * @param state
+	 *            the engine's state
+	 * @param transactionId
+	 *            -1 if the event isn't about a message
+	 * @param itemIndex
+	 *            see the EVENT_... constants, -1 if unused
+	 * @param value
+	 *            see the EVENT_... constants
+	 */
+	public synchronized void record(long time, byte event, int state, int transactionId, int itemIndex, int value) {
+		times[next] = time;
+		events[next] = event;
+		states[next] = (byte) state;
+		transactionIds[next] = (short) transactionId;
+		itemIndices[next] = (short) itemIndex;
+		values[next] = value;
+		next = (next + 1) % times.length;
+		count++;
+	}
+
+	/**
+	 * Gives the number of events ever recorded (the buffer keeps only the last ones)
+	 */
+	public synchronized long getCount() {
+		return count;
+	}
+
+	/**
+	 * Writes the events in the buffer as text, oldest first. One line per event: time, event, state, transaction id, item index, value
+	 */
+	public synchronized void dump(PrintWriter writer) {
+		int size = (int) Math.min(count, times.length);
+		SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
+		writer.println("Sync trace: " + size + " of " + count + " events");
+		for (int i = 0; i < size; i++) {
+			int slot = (next - size + i + times.length) % times.length;
+			int event = events[slot];
+			writer.println(format.format(new Date(times[slot])) + " " + (event > 0 && event < EVENT_NAMES.length ? EVENT_NAMES[event] : String.valueOf(event))
+					+ " state=" + states[slot] + " txn=" + transactionIds[slot] + " item=" + itemIndices[slot] + " value=" + values[slot]);
+		}
+		writer.flush();
+	}
+}
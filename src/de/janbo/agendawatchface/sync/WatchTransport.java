@@ -0,0 +1,18 @@
+package de.janbo.agendawatchface.sync;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+/**
+ * Carries messages from the SyncEngine to the watchapp (e.g., PebbleKit AppMessages or a SimulatedWatch)
+ */
+public interface WatchTransport {
+	/**
+	 * Sends a message to the watchapp. The watch's ack or nack for it must be handed to SyncEngine.ackReceived() or SyncEngine.nackReceived() later on
+	 *
+	 * @param data
+	 *            content of the message
+	 * @param transactionId
+	 *            id the ack or nack will carry
+	 */
+	public void sendMessage(PebbleDictionary data, int transactionId);
+}